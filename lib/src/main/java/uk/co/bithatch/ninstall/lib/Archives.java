@@ -20,36 +20,76 @@
  */
 package uk.co.bithatch.ninstall.lib;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipShort;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import uk.co.bithatch.ninstall.lib.IO.IOCall;
 
 public class Archives {
 
+	/**
+	 * Header ID of the ZIP extra field holding the permission and link markers written by
+	 * {@link #markers(Path, Optional)}. The self extractor reads these too, so keeps its own copy.
+	 */
+	public static final int MARKERS = 0x694e;
+
 	public enum Format {
-		TAR_GZ, TAR_BZ2, TAR, ZIP;
+		TAR_GZ, TAR_BZ2, TAR_XZ, TAR_ZST, TAR, ZIP;
 
 		public static Format fromPath(Path path) {
 			return fromFilename(path.getFileName().toString());
@@ -57,10 +97,14 @@ public class Archives {
 
 		public static Format fromFilename(String filename) {
 			var bfn = filename.toLowerCase();
-			if (bfn.endsWith(".tar.gz")) {
+			if (bfn.endsWith(".tar.gz") || bfn.endsWith(".tgz")) {
 				return TAR_GZ;
 			} else if (bfn.endsWith(".tar.bz2")) {
 				return TAR_BZ2;
+			} else if (bfn.endsWith(".tar.xz") || bfn.endsWith(".txz")) {
+				return TAR_XZ;
+			} else if (bfn.endsWith(".tar.zst") || bfn.endsWith(".tzst")) {
+				return TAR_ZST;
 			} else if (bfn.endsWith(".tar")) {
 				return TAR;
 			} else if (bfn.endsWith(".zip")) {
@@ -69,49 +113,106 @@ public class Archives {
 				throw new UnsupportedOperationException("Unspported archive format. " + filename);
 			}
 		}
+
+		public String extension() {
+			switch (this) {
+			case TAR_GZ:
+				return ".tar.gz";
+			case TAR_BZ2:
+				return ".tar.bz2";
+			case TAR_XZ:
+				return ".tar.xz";
+			case TAR_ZST:
+				return ".tar.zst";
+			case TAR:
+				return ".tar";
+			default:
+				return ".zip";
+			}
+		}
+
+		public boolean tar() {
+			return this != ZIP;
+		}
+	}
+
+	/**
+	 * An entry as it is extracted from an archive.
+	 *
+	 * @param name name of the entry in the archive
+	 * @param path path it is extracted to
+	 * @param directory whether it is a directory
+	 * @param size uncompressed size, or -1 if not known
+	 * @param mode unix permissions, or 0 if the archive does not record them
+	 * @param link target if the entry is a symbolic link
+	 * @param hardLink path of the earlier entry if this entry is a hard link to it
+	 * @param lastModified modification time
+	 */
+	public record Entry(String name, Path path, boolean directory, long size, int mode, Optional<String> link,
+			Optional<Path> hardLink, FileTime lastModified) {
 	}
 
-	public static List<Path> extract(Format format, InputStream in, Path destination) {
-		try {
+	/**
+	 * Receives each entry once it has been extracted. Entries are always visited on the thread
+	 * that is extracting the archive, but files are visited as they finish being written, so
+	 * not necessarily in archive order. Directories are visited before their attributes are
+	 * applied, which happens after everything else has been written.
+	 */
+	@FunctionalInterface
+	public interface EntryVisitor {
+		void visit(Entry entry) throws IOException;
+	}
+
+	public static void extract(Format format, InputStream in, Path destination) {
+		extract(format, in, destination, e -> {
+		});
+	}
+
+	public static void extract(Format format, InputStream in, Path destination, EntryVisitor visitor) {
+		extract(format, in, destination, Runtime.getRuntime().availableProcessors(), e -> true, visitor);
+	}
+
+	/**
+	 * Extract an archive to a directory. The calling thread decompresses the archive and
+	 * hands the content of each file, in bounded chunks, to a pool of writer threads that
+	 * create the files and apply their modes and times. Decompression and writing so
+	 * overlap. Directory attributes are applied once everything has been written.
+	 * <p>
+	 * Nothing is kept for entries once they have been visited, so memory use does not
+	 * grow with the size of the archive.
+	 *
+	 * @param format format
+	 * @param in archive stream
+	 * @param destination destination directory
+	 * @param parallelism number of writer threads
+	 * @param filter entries to extract, tested before anything is written
+	 * @param visitor receives each extracted entry
+	 */
+	public static void extract(Format format, InputStream in, Path destination, int parallelism,
+			Predicate<? super Entry> filter, EntryVisitor visitor) {
+		try (var extraction = new Extraction(parallelism, visitor)) {
 			var tais = open(format, in);
-			var entry = tais.getNextEntry();
-			var paths = new ArrayList<Path>();
-			while (entry != null) {
-				var name = entry.getName();
-				while (name.startsWith("/")) {
-					name = name.substring(1);
-				}
-				if (name.equals("")) {
+			ArchiveEntry archiveEntry;
+			while ((archiveEntry = tais.getNextEntry()) != null) {
+				extraction.visitLanded();
+
+				var resolved = entry(destination, archiveEntry, tais::readAllBytes);
+				if (resolved.isEmpty() || !filter.test(resolved.get())) {
 					continue;
 				}
 
-				while (name.endsWith("/"))
-					name = name.substring(0, name.length() - 1);
-
-				var des = destination.resolve(Paths.get(name.replace('/', File.separatorChar)));
-				var lnk = getLink(des, tais, entry);
-				if (lnk.isPresent()) {
-					Files.createSymbolicLink(des, Paths.get(lnk.get()));
+				var entry = resolved.get();
+				if (entry.link().isPresent()) {
+					extraction.link(entry);
+				} else if (entry.hardLink().isPresent()) {
+					extraction.hardLink(entry);
+				} else if (entry.directory()) {
+					extraction.directory(entry, archiveEntry);
 				} else {
-					if (entry.isDirectory()) {
-						Files.createDirectories(des);
-						tais.transferTo(OutputStream.nullOutputStream());
-					} else {
-						var parent = des.getParent();
-						if (parent != null && !Files.exists(parent))
-							Files.createDirectories(parent);
-
-						try (var out = Files.newOutputStream(des)) {
-							tais.transferTo(out);
-						}
-					}
-					setAttributes(des, entry);
+					extraction.file(entry, archiveEntry, tais);
 				}
-
-				entry = tais.getNextEntry();
-				paths.add(des);
 			}
-			return paths;
+			extraction.finish();
 		} catch (IOException ioe) {
 			throw new UncheckedIOException(ioe);
 		} catch (CompressorException e) {
@@ -119,18 +220,381 @@ public class Archives {
 		}
 	}
 
-	private static Optional<String> getLink(Path des, ArchiveInputStream<?> in, ArchiveEntry entry) throws IOException {
-		if (entry instanceof TarArchiveEntry tae && tae.isSymbolicLink()) {
-			in.transferTo(OutputStream.nullOutputStream());
-			return Optional.of(tae.getLinkName());
-		} else if (entry instanceof ZipArchiveEntry za && za.isUnixSymlink()) {
-			var bout = new ByteArrayOutputStream();
-			in.transferTo(bout);
-			return Optional.of(new String(bout.toByteArray(), "UTF-8"));
+	public static void extract(Format format, Path archive, Path destination) {
+		extract(format, archive, destination, e -> {
+		});
+	}
+
+	public static void extract(Format format, Path archive, Path destination, EntryVisitor visitor) {
+		extract(format, archive, destination, Runtime.getRuntime().availableProcessors(), e -> true, visitor);
+	}
+
+	/**
+	 * Extract an archive file to a directory. A ZIP file is read through its central
+	 * directory, so entries are inflated concurrently by <code>parallelism</code> threads.
+	 * Other formats can only be read forwards, so are extracted as a stream using
+	 * {@link #extract(Format, InputStream, Path, int, Predicate, EntryVisitor)}.
+	 *
+	 * @param format format
+	 * @param archive archive file
+	 * @param destination destination directory
+	 * @param parallelism number of writer threads
+	 * @param filter entries to extract, tested before anything is written
+	 * @param visitor receives each extracted entry
+	 */
+	public static void extract(Format format, Path archive, Path destination, int parallelism,
+			Predicate<? super Entry> filter, EntryVisitor visitor) {
+		if (format != Format.ZIP) {
+			try (var in = Files.newInputStream(archive)) {
+				extract(format, in, destination, parallelism, filter, visitor);
+				return;
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		try (var zip = ZipFile.builder().setPath(archive).get(); var extraction = new Extraction(parallelism, visitor)) {
+			var entries = zip.getEntriesInPhysicalOrder();
+			while (entries.hasMoreElements()) {
+				extraction.visitLanded();
+
+				var zipEntry = entries.nextElement();
+				var resolved = entry(destination, zipEntry, () -> {
+					try (var in = zip.getInputStream(zipEntry)) {
+						return in.readAllBytes();
+					}
+				});
+				if (resolved.isEmpty() || !filter.test(resolved.get())) {
+					continue;
+				}
+
+				var entry = resolved.get();
+				if (entry.link().isPresent()) {
+					extraction.link(entry);
+				} else if (entry.hardLink().isPresent()) {
+					extraction.hardLink(entry);
+				} else if (entry.directory()) {
+					extraction.directory(entry, zipEntry);
+				} else {
+					extraction.file(entry, zipEntry, zip);
+				}
+			}
+			extraction.finish();
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/**
+	 * Get the permissions of a ZIP entry. The unix mode is used if there is one, otherwise
+	 * the permission markers written by {@link #putNextEntry(ZipOutputStream, ZipEntry, Path)}.
+	 * These only apply to the owner, so the rest are as they would be when extracted with a
+	 * typical umask.
+	 *
+	 * @param entry entry
+	 * @return mode
+	 */
+	public static int mode(ZipArchiveEntry entry) {
+		if (entry.getUnixMode() > 0)
+			return entry.getUnixMode() & 07777;
+
+		var extra = extra(entry);
+		if (extra.isEmpty())
+			return entry.isDirectory() ? 0755 : 0644;
+
+		var mode = entry.isDirectory() ? 0055 : 0044;
+		for (var i = 0; i < extra.length(); i++) {
+			switch (extra.charAt(i)) {
+			case 'R':
+				mode |= 0400;
+				break;
+			case 'W':
+				mode |= 0200;
+				break;
+			case 'X':
+				mode |= 0100;
+				break;
+			case 'L':
+			case 'H':
+				return mode;
+			}
+		}
+		return mode;
+	}
+
+	/**
+	 * Get the symbolic link target recorded by
+	 * {@link #putNextEntry(ZipOutputStream, ZipEntry, Path, Optional)} in a ZIP entry, if any.
+	 *
+	 * @param entry entry
+	 * @return link target
+	 */
+	public static Optional<String> link(ZipArchiveEntry entry) {
+		return marker(entry, 'L');
+	}
+
+	/**
+	 * Get the name of the earlier entry a ZIP entry is a hard link to, as recorded by
+	 * {@link #putNextEntry(ZipOutputStream, ZipEntry, Path, Optional)}, if any.
+	 *
+	 * @param entry entry
+	 * @return name of linked entry
+	 */
+	public static Optional<String> hardLink(ZipArchiveEntry entry) {
+		return marker(entry, 'H');
+	}
+
+	/* Markers with a value are the marker character, a 4 digit length, then the value */
+	private static Optional<String> marker(ZipArchiveEntry entry, char marker) {
+		var extra = extra(entry);
+		for (var i = 0; i < extra.length(); i++) {
+			var c = extra.charAt(i);
+			if ((c == 'L' || c == 'H') && i + 5 <= extra.length()) {
+				var len = Integer.parseInt(extra.substring(i + 1, i + 5));
+				if (c == marker)
+					return Optional.of(extra.substring(i + 5, i + 5 + len));
+				i += 4 + len;
+			}
 		}
 		return Optional.empty();
 	}
 
+	private static String extra(ZipArchiveEntry entry) {
+		var field = entry.getExtraField(new ZipShort(MARKERS));
+		return field == null ? "" : new String(field.getLocalFileDataData(), StandardCharsets.UTF_8);
+	}
+
+	private static Optional<Entry> entry(Path destination, ArchiveEntry entry, IOCall<byte[]> content)
+			throws IOException {
+		var resolved = path(destination, entry.getName());
+		if (resolved.isEmpty()) {
+			return Optional.empty();
+		}
+
+		var path = resolved.get();
+		var modified = FileTime.fromMillis(entry.getLastModifiedDate().getTime());
+		if (entry instanceof TarArchiveEntry tae) {
+			return Optional.of(new Entry(entry.getName(), path, tae.isDirectory(), tae.getSize(),
+					tae.getMode() & 07777,
+					tae.isSymbolicLink() ? Optional.of(tae.getLinkName()) : Optional.empty(),
+					tae.isLink() ? linkPath(destination, Optional.of(tae.getLinkName())) : Optional.empty(), modified));
+		} else if (entry instanceof ZipArchiveEntry zae) {
+			return Optional.of(new Entry(entry.getName(), path, zae.isDirectory(), zae.getSize(), mode(zae),
+					zae.isUnixSymlink() ? Optional.of(new String(content.call(), StandardCharsets.UTF_8)) : link(zae),
+					linkPath(destination, hardLink(zae)), modified));
+		} else {
+			return Optional.of(new Entry(entry.getName(), path, entry.isDirectory(), entry.getSize(), 0,
+					Optional.empty(), Optional.empty(), modified));
+		}
+	}
+
+	private static Optional<Path> linkPath(Path destination, Optional<String> name) throws IOException {
+		if (name.isEmpty())
+			return Optional.empty();
+		var path = path(destination, name.get());
+		if (path.isEmpty())
+			throw new IOException(MessageFormat.format("Hard link to ''{0}'' does not name a file.", name.get()));
+		return path;
+	}
+
+	/* Entry names (and hard link targets) are untrusted, so once resolved must still be
+	 * inside the destination */
+	private static Optional<Path> path(Path destination, String name) throws IOException {
+		var original = name;
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+		while (name.endsWith("/"))
+			name = name.substring(0, name.length() - 1);
+		if (name.equals("")) {
+			return Optional.empty();
+		}
+		var root = destination.toAbsolutePath().normalize();
+		var path = root.resolve(Paths.get(name.replace('/', File.separatorChar))).normalize();
+		if (!path.startsWith(root) || path.equals(root)) {
+			throw new IOException(MessageFormat.format("Archive path ''{0}'' is outside of ''{1}''.", original, destination));
+		}
+		return Optional.of(destination.resolve(root.relativize(path)));
+	}
+
+	/**
+	 * State shared between the thread reading an archive and the threads writing its files.
+	 * The number of bytes read but not yet written is bounded, so a slow disk holds up
+	 * decompression rather than filling the heap.
+	 * <p>
+	 * Hard links are made once every file has been written, as the file linked to may still
+	 * be in the hands of a writer. Blocks of zeros in sparse tar entries are skipped rather
+	 * than written, leaving holes.
+	 */
+	private final static class Extraction implements Closeable {
+		private final static int CHUNK = 64 * 1024;
+		private final static int BUFFERED = 32 * 1024 * 1024;
+		private final static byte[] EOF = new byte[0];
+		private final static int BLOCK = 4096;
+		private final static byte[] ZEROS = new byte[BLOCK];
+
+		private final ExecutorService writers;
+		private final EntryVisitor visitor;
+		private final Semaphore buffered = new Semaphore(BUFFERED);
+		private final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+		private final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		private final Queue<Entry> landed = new ConcurrentLinkedQueue<>();
+		private final Map<Path, ArchiveEntry> directories = new LinkedHashMap<>();
+		private final List<Entry> hardLinks = new ArrayList<>();
+
+		private Extraction(int parallelism, EntryVisitor visitor) {
+			this.visitor = visitor;
+			writers = Executors.newFixedThreadPool(Math.max(1, parallelism), IO.threads("Extract"));
+		}
+
+		void mkdirs(Path dir) throws IOException {
+			if (dir != null && !dirs.contains(dir)) {
+				Files.createDirectories(dir);
+				for (var p = dir; p != null && dirs.add(p); p = p.getParent())
+					;
+			}
+		}
+
+		void link(Entry entry) throws IOException {
+			mkdirs(entry.path().getParent());
+			Files.createSymbolicLink(entry.path(), Paths.get(entry.link().get()));
+			landed.add(entry);
+		}
+
+		void hardLink(Entry entry) {
+			hardLinks.add(entry);
+		}
+
+		void directory(Entry entry, ArchiveEntry archiveEntry) throws IOException {
+			mkdirs(entry.path());
+			directories.put(entry.path(), archiveEntry);
+			landed.add(entry);
+		}
+
+		void file(Entry entry, ArchiveEntry archiveEntry, InputStream in) throws IOException {
+			var chunks = new LinkedBlockingQueue<byte[]>();
+			writers.execute(() -> write(entry, archiveEntry, chunks));
+			try {
+				byte[] chunk;
+				while ((chunk = in.readNBytes(CHUNK)).length > 0) {
+					buffered.acquireUninterruptibly(chunk.length);
+					chunks.add(chunk);
+				}
+			} finally {
+				chunks.add(EOF);
+			}
+		}
+
+		void file(Entry entry, ZipArchiveEntry zipEntry, ZipFile zip) {
+			writers.execute(() -> {
+				try {
+					mkdirs(entry.path().getParent());
+					try (var in = zip.getInputStream(zipEntry); var out = Files.newOutputStream(entry.path())) {
+						in.transferTo(out);
+					}
+					setAttributes(entry.path(), zipEntry);
+					landed.add(entry);
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		/* Check for failed writes, and pass anything written since last time to the visitor */
+		void visitLanded() throws IOException {
+			var first = errors.peek();
+			if (first != null) {
+				var ioe = first instanceof IOException fioe ? fioe : new IOException(first);
+				errors.stream().filter(e -> e != first).forEach(ioe::addSuppressed);
+				throw ioe;
+			}
+
+			Entry entry;
+			while ((entry = landed.poll()) != null) {
+				visitor.visit(entry);
+			}
+		}
+
+		void finish() throws IOException {
+			close();
+			for (var entry : hardLinks) {
+				mkdirs(entry.path().getParent());
+				Files.deleteIfExists(entry.path());
+				Files.createLink(entry.path(), entry.hardLink().get());
+				landed.add(entry);
+			}
+			visitLanded();
+			for (var en : directories.entrySet()) {
+				setAttributes(en.getKey(), en.getValue());
+			}
+		}
+
+		@Override
+		public void close() {
+			writers.shutdown();
+			try {
+				while (!writers.awaitTermination(1, TimeUnit.MINUTES))
+					;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void write(Entry entry, ArchiveEntry archiveEntry, BlockingQueue<byte[]> chunks) {
+			var drained = false;
+			try {
+				mkdirs(entry.path().getParent());
+				var sparse = archiveEntry instanceof TarArchiveEntry tae && tae.isSparse();
+				try (var out = FileChannel.open(entry.path(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					var position = 0l;
+					for (var chunk = next(chunks); chunk != EOF; chunk = next(chunks)) {
+						if (sparse)
+							writeSparse(out, chunk, position);
+						else
+							writeFully(out, ByteBuffer.wrap(chunk));
+						position += chunk.length;
+					}
+					drained = true;
+					if (out.size() < position) {
+						/* Ended in a hole */
+						writeFully(out.position(position - 1), ByteBuffer.wrap(new byte[1]));
+					}
+				}
+				setAttributes(entry.path(), archiveEntry);
+				landed.add(entry);
+			} catch (Throwable e) {
+				errors.add(e);
+				try {
+					while (!drained)
+						drained = next(chunks) == EOF;
+				} catch (InterruptedException ie) {
+				}
+			}
+		}
+
+		private static void writeSparse(FileChannel out, byte[] chunk, long position) throws IOException {
+			for (var off = 0; off < chunk.length; off += BLOCK) {
+				var len = Math.min(BLOCK, chunk.length - off);
+				if (Arrays.mismatch(chunk, off, off + len, ZEROS, 0, len) != -1) {
+					writeFully(out.position(position + off), ByteBuffer.wrap(chunk, off, len));
+				}
+			}
+		}
+
+		private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+		}
+
+		private byte[] next(BlockingQueue<byte[]> chunks) throws InterruptedException {
+			var chunk = chunks.take();
+			buffered.release(chunk.length);
+			return chunk;
+		}
+	}
+
 	private static void setAttributes(Path des, ArchiveEntry entry) throws IOException {
 		Files.setLastModifiedTime(des, FileTime.fromMillis(entry.getLastModifiedDate().getTime()));
 		if (entry instanceof TarArchiveEntry tae) {
@@ -143,8 +607,7 @@ public class Archives {
 				Boolean read = null;
 				Boolean write = null;
 				Boolean execute = null;
-				var extra = zae.getExtra() == null ? "" : new String(zae.getExtra(), "UTF-8");
-				char[] extrac = extra.toCharArray();
+				char[] extrac = extra(zae).toCharArray();
 				for (int i = 0; i < extrac.length; i++) {
 					char c = extrac[i];
 					switch (c) {
@@ -209,7 +672,7 @@ public class Archives {
 	}
 
 	private static ArchiveInputStream<? extends ArchiveEntry> open(Format format, InputStream in)
-			throws CompressorException {
+			throws CompressorException, IOException {
 		switch (format) {
 		case TAR_BZ2:
 			return new TarArchiveInputStream(
@@ -217,6 +680,12 @@ public class Archives {
 		case TAR_GZ:
 			return new TarArchiveInputStream(
 					new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.GZIP, in));
+		case TAR_XZ:
+			return new TarArchiveInputStream(
+					new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.XZ, in));
+		case TAR_ZST:
+			/* Commons Compress would need the native zstd-jni, this decoder is pure Java */
+			return new TarArchiveInputStream(new ZstdInputStream(in));
 		case TAR:
 			return new TarArchiveInputStream(in);
 		case ZIP:
@@ -226,7 +695,151 @@ public class Archives {
 		}
 	}
 
+	/**
+	 * Create a stream to write a tar archive, compressed as appropriate for the format.
+	 * Long names and large or negative numbers use POSIX extended headers.
+	 *
+	 * @param format format, which must be one of the tar formats
+	 * @param out stream to write the archive to
+	 * @return tar stream
+	 * @throws IOException on error
+	 */
+	public static TarArchiveOutputStream tar(Format format, OutputStream out) throws IOException {
+		OutputStream cout;
+		switch (format) {
+		case TAR_BZ2:
+			cout = new BZip2CompressorOutputStream(out);
+			break;
+		case TAR_GZ:
+			cout = new GzipCompressorOutputStream(out);
+			break;
+		case TAR_XZ:
+			cout = new XZCompressorOutputStream(out);
+			break;
+		case TAR_ZST:
+			cout = new ZstdOutputStream(out);
+			break;
+		case TAR:
+			cout = out;
+			break;
+		default:
+			throw new IllegalArgumentException("Not a tar format. " + format);
+		}
+		var tout = new TarArchiveOutputStream(cout, "UTF-8");
+		tout.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+		tout.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+		return tout;
+	}
+
+	/**
+	 * Keeps track of files with more than one link while they are packaged, so that the
+	 * second and subsequent paths to the same file can be added as hard links to the first
+	 * entry rather than as copies of its content.
+	 */
+	public final static class HardLinks {
+		private final Map<Object, String> names = new ConcurrentHashMap<>();
+
+		/**
+		 * Get the name of an earlier entry for the same file as a path, or record this entry
+		 * as the first if there is none.
+		 *
+		 * @param path file
+		 * @param name name of the entry for the file
+		 * @return name of the earlier entry for the same file
+		 * @throws IOException on error
+		 */
+		public Optional<String> link(Path path, String name) throws IOException {
+			if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+				return Optional.empty();
+			}
+			try {
+				if (((Number) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() < 2) {
+					return Optional.empty();
+				}
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				return Optional.empty();
+			}
+			var key = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+			return key == null ? Optional.empty() : Optional.ofNullable(names.putIfAbsent(key, name));
+		}
+	}
+
+	public static TarArchiveEntry putNextEntry(TarArchiveOutputStream tarOut, String name, Path path) throws IOException {
+		return putNextEntry(tarOut, name, path, Optional.empty());
+	}
+
+	/**
+	 * Start a tar entry for a file, directory or symbolic link, with its mode, owner and
+	 * times. The caller writes the content of regular files and closes the entry. If
+	 * <code>hardLink</code> is present, a hard link to that earlier entry is added instead,
+	 * and there is no content to write.
+	 *
+	 * @param tarOut tar stream
+	 * @param name name of entry, directories should end with a slash
+	 * @param path file the entry is for
+	 * @param hardLink name of an earlier entry for the same file
+	 * @return entry
+	 * @throws IOException on error
+	 */
+	public static TarArchiveEntry putNextEntry(TarArchiveOutputStream tarOut, String name, Path path,
+			Optional<String> hardLink) throws IOException {
+		TarArchiveEntry entry;
+		if (Files.isSymbolicLink(path)) {
+			entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+			entry.setLinkName(Files.readSymbolicLink(path).toString());
+			entry.setModTime(Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS));
+		} else if (hardLink.isPresent()) {
+			entry = new TarArchiveEntry(name, TarConstants.LF_LINK);
+			entry.setLinkName(hardLink.get());
+			entry.setModTime(Files.getLastModifiedTime(path));
+		} else {
+			entry = new TarArchiveEntry(path, name, LinkOption.NOFOLLOW_LINKS);
+			/* Only libarchive understands this, GNU tar warns about it */
+			entry.setCreationTime(null);
+			try {
+				entry.setMode((entry.getMode() & ~07777) | IO.toBitmask(Files.getPosixFilePermissions(path)));
+			} catch (UnsupportedOperationException uoe) {
+				if (Files.isExecutable(path))
+					entry.setMode(entry.getMode() | 0111);
+			}
+		}
+		tarOut.putArchiveEntry(entry);
+		return entry;
+	}
+
 	public static void putNextEntry(ZipOutputStream zipOut, ZipEntry zipEntry, Path path) throws IOException {
+		putNextEntry(zipOut, zipEntry, path, Optional.empty());
+	}
+
+	/**
+	 * Start a ZIP entry, recording the permissions and any symbolic link target of the path
+	 * as markers in the extra data. If <code>hardLink</code> is present, it is recorded as
+	 * the name of the earlier entry this one is a hard link to, and the entry should be
+	 * left empty.
+	 *
+	 * @param zipOut zip stream
+	 * @param zipEntry entry
+	 * @param path file the entry is for
+	 * @param hardLink name of an earlier entry for the same file
+	 * @throws IOException on error
+	 */
+	public static void putNextEntry(ZipOutputStream zipOut, ZipEntry zipEntry, Path path, Optional<String> hardLink)
+			throws IOException {
+		zipEntry.setExtra(markers(path, hardLink));
+		zipOut.putNextEntry(zipEntry);
+	}
+
+	/**
+	 * Get the extra data for a ZIP entry that records the permissions and any symbolic link
+	 * target of a path, and optionally the name of an earlier entry it is a hard link to.
+	 * This is a single extra field with the header ID {@link #MARKERS}.
+	 *
+	 * @param path file the entry is for
+	 * @param hardLink name of an earlier entry for the same file
+	 * @return extra data
+	 * @throws IOException on error
+	 */
+	public static byte[] markers(Path path, Optional<String> hardLink) throws IOException {
 		var extra = new StringBuilder();
 
 		extra.append(Files.isReadable(path) ? "R" : "r");
@@ -239,9 +852,17 @@ public class Archives {
 			extra.append("L");
 			extra.append(String.format("%04d", lpathstr.length()));
 			extra.append(lpathstr);
+		} else if (hardLink.isPresent()) {
+			extra.append("H");
+			extra.append(String.format("%04d", hardLink.get().length()));
+			extra.append(hardLink.get());
 		}
 
-		zipEntry.setExtra(extra.toString().getBytes("UTF-8"));
-		zipOut.putNextEntry(zipEntry);
+		var data = extra.toString().getBytes(StandardCharsets.UTF_8);
+		var field = ByteBuffer.allocate(4 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+		field.putShort((short) MARKERS);
+		field.putShort((short) data.length);
+		field.put(data);
+		return field.array();
 	}
 }
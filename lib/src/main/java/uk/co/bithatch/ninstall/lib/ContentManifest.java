@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A compact list of every path in a package, with its size, mode, modification time and
+ * SHA-256 digest. Packagers write one at the root of the package, and the installer reads
+ * it instead of scanning the extracted tree.
+ * <p>
+ * Each line is tab separated, with the path last. <code>d</code> or <code>f</code>, the
+ * octal mode (or <code>-</code>), modification time in milliseconds, size, the hex digest
+ * (or <code>-</code>) and the path, with <code>/</code> as the separator. Backslash, tab,
+ * carriage return and newline in the path are escaped as <code>\\</code>, <code>\t</code>,
+ * <code>\r</code> and <code>\n</code>. The first line is a header with the format version,
+ * and a manifest with any other header is rejected.
+ */
+public final class ContentManifest {
+	
+	public final static String FILENAME = ".ninstall.manifest";
+	
+	private final static String HEADER = "# ninstall content 2";
+	
+	public record Entry(String path, boolean directory, long size, int mode, long lastModified, Optional<String> sha256) {
+	}
+	
+	public final static class Builder {
+		private final List<Entry> entries = new ArrayList<>();
+		
+		public Builder add(Entry entry) {
+			entries.add(entry);
+			return this;
+		}
+		
+		/**
+		 * Add a file or directory, reading its content to calculate the digest.
+		 * 
+		 * @param path path in the package
+		 * @param source file to read
+		 * @return this for chaining
+		 * @throws IOException on error
+		 */
+		public Builder add(String path, Path source) throws IOException {
+			if(Files.isDirectory(source)) {
+				return add(path, source, Optional.empty());
+			}
+			else {
+				return add(path, source, Optional.of(sha256(source)));
+			}
+		}
+		
+		/**
+		 * Add a file whose digest has already been calculated, for example while it was
+		 * being written to an archive using {@link ContentManifest#digestStream(InputStream)}.
+		 * 
+		 * @param path path in the package
+		 * @param source file
+		 * @param sha256 digest
+		 * @return this for chaining
+		 * @throws IOException on error
+		 */
+		public Builder add(String path, Path source, byte[] sha256) throws IOException {
+			return add(path, source, Optional.of(HexFormat.of().formatHex(sha256)));
+		}
+		
+		private Builder add(String path, Path source, Optional<String> sha256) throws IOException {
+			var dir = Files.isDirectory(source);
+			var posix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+			var mode = posix == null ? -1 : IO.toBitmask(posix.readAttributes().permissions());
+			return add(new Entry(
+				path.replace('\\', '/'), 
+				dir, 
+				dir ? 0 : Files.size(source), 
+				mode, 
+				Files.getLastModifiedTime(source).toMillis(), 
+				sha256));
+		}
+		
+		public ContentManifest build() {
+			return new ContentManifest(this);
+		}
+	}
+	
+	private final List<Entry> entries;
+	
+	private ContentManifest(Builder bldr) {
+		entries = Collections.unmodifiableList(new ArrayList<>(bldr.entries));
+	}
+	
+	public List<Entry> entries() {
+		return entries;
+	}
+	
+	public static DigestInputStream digestStream(InputStream in) {
+		try {
+			return new DigestInputStream(in, MessageDigest.getInstance("SHA-256"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static String sha256(Path file) throws IOException {
+		try(var in = Files.newInputStream(file)) {
+			return sha256(in);
+		}
+	}
+	
+	public static String sha256(InputStream in) throws IOException {
+		var din = digestStream(in);
+		din.transferTo(OutputStream.nullOutputStream());
+		return HexFormat.of().formatHex(din.getMessageDigest().digest());
+	}
+	
+	public static Optional<ContentManifest> find(Path root) throws IOException {
+		var file = root.resolve(FILENAME);
+		if(Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+			try(var in = Files.newInputStream(file)) {
+				return Optional.of(read(in));
+			}
+		}
+		return Optional.empty();
+	}
+	
+	public static ContentManifest read(InputStream in) throws IOException {
+		var bldr = new Builder();
+		var rdr = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		var line = rdr.readLine();
+		if(!HEADER.equals(line))
+			throw new IOException("Unsupported content manifest header. " + line);
+		while( ( line = rdr.readLine() ) != null) {
+			if(line.isBlank()) {
+				continue;
+			}
+			var fields = line.split("\t", 6);
+			if(fields.length != 6)
+				throw new IOException("Corrupt content manifest line. " + line);
+			bldr.add(new Entry(
+				unescape(fields[5]), 
+				fields[0].equals("d"),
+				Long.parseLong(fields[3]),
+				fields[1].equals("-") ? -1 : Integer.parseInt(fields[1], 8),
+				Long.parseLong(fields[2]),
+				fields[4].equals("-") ? Optional.empty() : Optional.of(fields[4])));
+		}
+		return bldr.build();
+	}
+	
+	public void write(OutputStream out) {
+		var wtr = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		wtr.print(HEADER);
+		wtr.print('\n');
+		for(var entry : entries) {
+			wtr.print(entry.directory() ? "d" : "f");
+			wtr.print('\t');
+			wtr.print(entry.mode() == -1 ? "-" : Integer.toOctalString(entry.mode()));
+			wtr.print('\t');
+			wtr.print(entry.lastModified());
+			wtr.print('\t');
+			wtr.print(entry.size());
+			wtr.print('\t');
+			wtr.print(entry.sha256().orElse("-"));
+			wtr.print('\t');
+			wtr.print(escape(entry.path()));
+			wtr.print('\n');
+		}
+		wtr.flush();
+	}
+	
+	private static String escape(String path) {
+		var buf = new StringBuilder(path.length());
+		for(var i = 0 ; i < path.length(); i++) {
+			var ch = path.charAt(i);
+			switch(ch) {
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			default:
+				buf.append(ch);
+				break;
+			}
+		}
+		return buf.toString();
+	}
+	
+	private static String unescape(String path) throws IOException {
+		if(path.indexOf('\\') == -1)
+			return path;
+		var buf = new StringBuilder(path.length());
+		for(var i = 0 ; i < path.length(); i++) {
+			var ch = path.charAt(i);
+			if(ch == '\\') {
+				if(++i == path.length())
+					throw new IOException("Corrupt content manifest path. " + path);
+				switch(path.charAt(i)) {
+				case '\\':
+					buf.append('\\');
+					break;
+				case 't':
+					buf.append('\t');
+					break;
+				case 'r':
+					buf.append('\r');
+					break;
+				case 'n':
+					buf.append('\n');
+					break;
+				default:
+					throw new IOException("Corrupt content manifest path. " + path);
+				}
+			}
+			else {
+				buf.append(ch);
+			}
+		}
+		return buf.toString();
+	}
+	
+	public void write(Path file) throws IOException {
+		try(var out = Files.newOutputStream(file)) {
+			write(out);
+		}
+	}
+	
+	/**
+	 * Create a {@link FileTreeSnapshot} of where the content of this manifest has been 
+	 * extracted to, without examining the files themselves. Ownership is not recorded,
+	 * so is left as whoever creates the files. Any parent directories that are not in
+	 * the manifest themselves are added before their first child.
+	 * 
+	 * @param root location of extracted content
+	 * @param filter filter, given the absolute path
+	 * @return snapshot
+	 */
+	public FileTreeSnapshot snapshot(Path root, Predicate<? super Path> filter) {
+		var snapentries = new ArrayList<FileTreeSnapshot.Entry>();
+		var dirs = new HashSet<Path>();
+		for(var entry : entries) {
+			var path = Paths.get(entry.path());
+			if(filter.test(root.resolve(path))) {
+				var time = FileTime.fromMillis(entry.lastModified());
+				addParents(path.getParent(), time, dirs, snapentries);
+				if(entry.directory() && !dirs.add(path)) {
+					continue;
+				}
+				snapentries.add(new FileTreeSnapshot.Entry(
+					path, 
+					entry.directory(), 
+					entry.size(), 
+					time, time, time, 
+					entry.mode() == -1 
+						? Optional.empty() 
+						: Optional.of(new FileTreeSnapshot.Posix(IO.fromBitmask(entry.mode()), Optional.empty(), Optional.empty())), 
+					entry.sha256()));
+			}
+		}
+		return FileTreeSnapshot.of(root, snapentries);
+	}
+
+	private void addParents(Path dir, FileTime time, Set<Path> dirs, List<FileTreeSnapshot.Entry> snapentries) {
+		if(dir == null || dirs.contains(dir)) {
+			return;
+		}
+		addParents(dir.getParent(), time, dirs, snapentries);
+		dirs.add(dir);
+		snapentries.add(new FileTreeSnapshot.Entry(dir, true, 0, time, time, time, Optional.empty(), Optional.empty()));
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+
+/**
+ * Decides how a single file is placed at its target location, see {@link IO#copy(CopyStrategy, Path, Path, java.util.Optional)}.
+ * Whatever method is chosen, if it turns out not to be possible the file is copied instead.
+ */
+@FunctionalInterface
+public interface CopyStrategy {
+	
+	enum Method {
+		/**
+		 * Rename the source to the target. The source is consumed, so this is only suitable
+		 * when the source is temporary, such as a self extracted installer.
+		 */
+		MOVE,
+		/**
+		 * Make a copy-on-write clone (reflink) of the source, supported by file systems such
+		 * as btrfs and XFS. Only data blocks are shared, so either file may be safely changed later.
+		 */
+		CLONE,
+		/**
+		 * Create a hard link to the source. Both paths share the same content, so this is only 
+		 * suitable for read-only payloads.
+		 */
+		LINK,
+		/**
+		 * Copy the content.
+		 */
+		COPY
+	}
+	
+	/**
+	 * Always copy content.
+	 */
+	CopyStrategy COPY = (source, target, sameStore) -> Method.COPY;
+
+	/**
+	 * Rename when source and target are on the same file store, otherwise copy. The
+	 * source will not survive.
+	 */
+	CopyStrategy MOVE = (source, target, sameStore) -> sameStore ? Method.MOVE : Method.COPY;
+
+	/**
+	 * When source and target are on the same file store, link read-only files and
+	 * clone all others. Otherwise copy. The source is left intact.
+	 */
+	CopyStrategy SHARE = (source, target, sameStore) -> {
+		if(sameStore) {
+			return readOnly(source) ? Method.LINK : Method.CLONE;
+		}
+		return Method.COPY;
+	};
+	
+	/**
+	 * Choose how to place the source file at the target.
+	 * 
+	 * @param source source file
+	 * @param target target file
+	 * @param sameStore whether the source and target (or its nearest existing parent) are on the same file store
+	 * @return method
+	 * @throws IOException on error
+	 */
+	Method select(Path source, Path target, boolean sameStore) throws IOException;
+	
+	private static boolean readOnly(Path path) throws IOException {
+		/* Files.isWritable() is always true for root, so look at the permissions themselves */
+		var posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if(posix == null) {
+			return !Files.isWritable(path);
+		}
+		var perms = posix.readAttributes().permissions();
+		return !perms.contains(PosixFilePermission.OWNER_WRITE) && 
+			   !perms.contains(PosixFilePermission.GROUP_WRITE) && 
+			   !perms.contains(PosixFilePermission.OTHERS_WRITE);
+	}
+}
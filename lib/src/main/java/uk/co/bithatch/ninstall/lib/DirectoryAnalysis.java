@@ -21,17 +21,18 @@
 package uk.co.bithatch.ninstall.lib;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 public class DirectoryAnalysis {
 
     private Path path;
 
-    public record Results(Path path, int files, int entries, long totalSize, Predicate<? super Path> filter) {
+    public record Results(Path path, int files, int entries, long totalSize, Predicate<? super Path> filter, FileTreeSnapshot snapshot) {
+    	
+    	public Results(FileTreeSnapshot snapshot, Predicate<? super Path> filter) {
+    		this(snapshot.root(), snapshot.files(), snapshot.size(), snapshot.totalSize(), filter, snapshot);
+    	}
     }
 
     public DirectoryAnalysis(Path path) {
@@ -39,20 +40,6 @@ public class DirectoryAnalysis {
     }
 
     public Results analyse(Predicate<? super Path> filter) throws IOException {
-        var files = new AtomicInteger();
-        var totalSize = new AtomicLong();
-        var entries = new AtomicInteger();
-
-        try (var stream = Files.walk(path, Integer.MAX_VALUE)) {
-            stream.filter(filter).forEach(p -> {
-            	entries.incrementAndGet();
-                if (!Files.isDirectory(p)) {
-                    files.incrementAndGet();
-                    totalSize.addAndGet(IO.ioCall(() -> Files.size(p)));
-                }
-            });
-        }
-
-        return new Results(path, files.get(), entries.get(), totalSize.get(), filter);
+        return new Results(FileTreeSnapshot.of(path, filter), filter);
     }
 }
@@ -29,13 +29,20 @@ import static uk.co.bithatch.ninstall.lib.IO.displayPath;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
@@ -72,6 +79,56 @@ public class Executable {
         private boolean executeBit = true;
         private List<String> options = new ArrayList<>();
         private Optional<Integer> parallelism = Optional.empty();
+        private Optional<Path> cache = Optional.empty();
+        private Optional<Long> maxMemory = Optional.empty();
+        
+        /**
+         * Set the maximum heap of the <code>native-image</code> builder, in bytes. By default
+         * the builder sizes its own heap from the physical memory of the machine, which 
+         * over-commits when several are run at once.
+         * 
+         * @param maxMemory maximum heap
+         * @return this for chaining
+         */
+        public Builder withMaxMemory(long maxMemory) {
+        	return withMaxMemory(Optional.of(maxMemory));
+        }
+        
+        public Builder withMaxMemory(Optional<Long> maxMemory) {
+        	this.maxMemory = maxMemory;
+        	return this;
+        }
+        
+        /**
+         * Set the directory in which generated executables are kept, keyed by a digest of
+         * everything that goes into them. When an executable with the same key has been
+         * generated before, it is copied from here rather than built again. By default,
+         * executables are not cached.
+         * 
+         * @param cache cache directory
+         * @return this for chaining
+         */
+        public Builder withCache(Path cache) {
+        	return withCache(Optional.of(cache));
+        }
+        
+        public Builder withCache(Optional<Path> cache) {
+        	this.cache = cache;
+        	return this;
+        }
+        
+        /**
+         * Cache generated executables in {@link Executable#defaultCache()}.
+         * 
+         * @return this for chaining
+         */
+        public Builder withCache() {
+        	return withCache(defaultCache());
+        }
+        
+        public Builder withoutCache() {
+        	return withCache(Optional.empty());
+        }
         
         public Builder withParallelism(int parallelism) {
         	return withParallelism(Optional.of(parallelism));
@@ -201,6 +258,8 @@ public class Executable {
     private final boolean executeBit;
     private final List<String> options;
     private final Optional<Integer> parallelism;
+    private final Optional<Path> cache;
+    private final Optional<Long> maxMemory;
     
     private Executable(Builder builder) {
         if(builder.mainClass == null)
@@ -216,6 +275,8 @@ public class Executable {
         this.classes = Collections.unmodifiableList(new ArrayList<>(builder.classes));
         this.resources = Collections.unmodifiableSet(new LinkedHashSet<>(builder.resources));
         this.parallelism = builder.parallelism;
+        this.cache = builder.cache;
+        this.maxMemory = builder.maxMemory;
         
         if(builder.outputFile.isEmpty()) {
             try {
@@ -279,7 +340,23 @@ public class Executable {
                 }
             });
             
+            var key = cache.isPresent() ? Optional.of(cacheKey(toolExe, tmp, fullPath)) : Optional.<String>empty();
+            if(key.isPresent()) {
+                var cached = cache.get().resolve(key.get()).resolve(outputFile.getFileName());
+                if(Files.exists(cached)) {
+                    progress.info(" cached {0}", key.get());
+                    Files.createDirectories(outputFile.toAbsolutePath().getParent());
+                    Files.copy(cached, outputFile, StandardCopyOption.REPLACE_EXISTING);
+                    IO.delete(tmp);
+                    if(executeBit) {
+                        outputFile.toFile().setExecutable(true, false);
+                    }
+                    return outputFile;
+                }
+            }
+            
             parallelism.ifPresent(p -> args.add("--parallelism=" + p));
+            maxMemory.ifPresent(m -> args.add("-J-Xmx" + Math.max(1, m / 1024 / 1024) + "m"));
             
             var pb = new ProcessBuilder(args);
             pb.redirectError(Redirect.INHERIT);
@@ -295,6 +372,7 @@ public class Executable {
                 if (pr.waitFor() != 0)
                     throw new IOException("Link failed with exit code " + pr.exitValue());
             } catch (InterruptedException ie) {
+                pr.destroy();
                 throw new IOException("Interrupted.");
             }
     
@@ -305,6 +383,10 @@ public class Executable {
                 outputFile.toFile().setExecutable(true, false);
             }
             
+            if(key.isPresent()) {
+                store(key.get());
+            }
+            
             return outputFile;
         }
         catch(IOException ioe) {
@@ -312,6 +394,96 @@ public class Executable {
         }
     }
 
+    /**
+     * Get the default directory generated executables are cached in, <code>.ninstall/native-image</code>
+     * in the user's home directory, unless the system property <code>ninstall.nativeImageCache</code> is set.
+     * 
+     * @return cache directory
+     */
+    public static Path defaultCache() {
+        var prop = System.getProperty("ninstall.nativeImageCache");
+        return prop == null ? IO.home().resolve(".ninstall").resolve("native-image") : Paths.get(prop);
+    }
+    
+    /* Everything that may change the generated executable. The temporary directory holds the
+     * extracted classes and bundled resources. Only content and relative names are used, never
+     * where things happen to be, so the key is the same on any machine or checkout */
+    private String cacheKey(Path toolExe, Path tmp, JarPath fullPath) throws IOException {
+        var digest = sha256();
+        update(digest, "ninstall-native-image-2");
+        var release = toolExe.toAbsolutePath().getParent().resolveSibling("release");
+        if(Files.isRegularFile(release))
+            update(digest, release);
+        else if(Files.isRegularFile(toolExe))
+            update(digest, toolExe);
+        update(digest, System.getProperty("os.name") + ":" + System.getProperty("os.arch"));
+        update(digest, mainClass.getName());
+        update(digest, outputFile.getFileName().toString());
+        for(var option : options)
+            update(digest, option);
+        for(var res : resources)
+            update(digest, res.path());
+        for(var path : fullPath.paths()) {
+            update(digest, path.equals(tmp) || path.getFileName() == null ? "." : path.getFileName().toString());
+            if(Files.isDirectory(path)) {
+                try(var walk = Files.walk(path)) {
+                    for(var file : walk.filter(Files::isRegularFile).sorted().toList()) {
+                        update(digest, path.relativize(file).toString());
+                        update(digest, file);
+                    }
+                }
+            }
+            else if(Files.isRegularFile(path)) {
+                update(digest, path);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    private void store(String key) throws IOException {
+        var dir = cache.get().resolve(key);
+        if(Files.exists(dir))
+            return;
+        
+        /* Another build may be storing the same key, so move into place complete */
+        Files.createDirectories(cache.get());
+        var tmp = Files.createTempDirectory(cache.get(), "." + key);
+        try {
+            Files.copy(outputFile, tmp.resolve(outputFile.getFileName()), StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(FileAlreadyExistsException | DirectoryNotEmptyException e) {
+        }
+        finally {
+            if(Files.exists(tmp))
+                IO.delete(tmp);
+        }
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+    }
+    
+    private static void update(MessageDigest digest, Path file) throws IOException {
+        try(var in = Files.newInputStream(file)) {
+            var buf = new byte[65536];
+            int r;
+            while( ( r = in.read(buf) ) != -1) {
+                digest.update(buf, 0, r);
+            }
+        }
+        update(digest, "");
+    }
+
     private void extractClass(Class<?> clazz, Path tmp) {
         try {
             var path = tmp.resolve(clazz.getName().replace(".", "/") + ".class");
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import uk.co.bithatch.ninstall.lib.IO.FileAttrs;
+
+/**
+ * An immutable record of every path in a directory tree, along with its attributes, 
+ * gathered in a single pass. Entries are in walk order, so a directory always comes
+ * before its children.
+ */
+public final class FileTreeSnapshot implements Iterable<FileTreeSnapshot.Entry> {
+
+	public record Posix(Set<PosixFilePermission> permissions, Optional<UserPrincipal> owner, Optional<GroupPrincipal> group) {
+	}
+
+	public record Entry(Path path, boolean directory, long size, FileTime lastModified, FileTime lastAccess,
+			FileTime creation, Optional<Posix> posix, Optional<String> sha256) {
+		
+		/**
+		 * Get the attributes of this entry so they may be applied to another path.
+		 * 
+		 * @return attributes
+		 */
+		public FileAttrs attrs() {
+			return target -> {
+				if(posix.isPresent()) {
+					var targetPosix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+					var p = posix.get();
+					if(p.group().isPresent())
+						targetPosix.setGroup(p.group().get());
+					if(p.owner().isPresent())
+						targetPosix.setOwner(p.owner().get());
+					targetPosix.setPermissions(p.permissions());
+					targetPosix.setTimes(lastModified, lastAccess, creation);
+				}
+				else {
+					Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(lastModified, lastAccess, creation);
+				}
+			};
+		}
+	}
+
+	private final Path root;
+	private final List<Entry> entries;
+	private final int files;
+	private final long totalSize;
+
+	private FileTreeSnapshot(Path root, List<Entry> entries) {
+		this.root = root;
+		this.entries = Collections.unmodifiableList(entries);
+
+		var files = 0;
+		var totalSize = 0L;
+		for (var entry : entries) {
+			if (!entry.directory()) {
+				files++;
+				totalSize += entry.size();
+			}
+		}
+		this.files = files;
+		this.totalSize = totalSize;
+	}
+
+	/**
+	 * Walk a directory tree once, recording every path accepted by the filter. The filter
+	 * is given the absolute path, and rejecting a directory does not prevent its
+	 * children from being visited. Symbolic links are not followed, but are recorded 
+	 * with the attributes of whatever they point to, as they will be copied as such.
+	 * A link to something that does not exist is recorded with its own attributes.
+	 * <p>
+	 * Where supported, {@link PosixFileAttributes} are read for each path rather than 
+	 * {@link BasicFileAttributes}. As {@link Files#walkFileTree(Path, java.nio.file.FileVisitor)} 
+	 * only supplies the latter, the tree is walked here so that every path is only 
+	 * examined once.
+	 * 
+	 * @param root root of tree
+	 * @param filter filter
+	 * @return snapshot
+	 * @throws IOException on error
+	 */
+	public static FileTreeSnapshot of(Path root, Predicate<? super Path> filter) throws IOException {
+		var entries = new ArrayList<Entry>();
+		var posix = Files.getFileAttributeView(root, PosixFileAttributeView.class) != null;
+		var attrs = readAttributes(root, posix);
+		if(filter.test(root)) {
+			entries.add(entry(root.relativize(root), attrs));
+		}
+		if(attrs.isDirectory()) {
+			walk(root, root, posix, filter, entries);
+		}
+		return new FileTreeSnapshot(root, entries);
+	}
+
+	private static void walk(Path root, Path dir, boolean posix, Predicate<? super Path> filter, List<Entry> entries) throws IOException {
+		try(var stream = Files.newDirectoryStream(dir)) {
+			for(var path : stream) {
+				var attrs = readAttributes(path, posix, LinkOption.NOFOLLOW_LINKS);
+				var link = attrs.isSymbolicLink();
+				if (link) {
+					try {
+						attrs = readAttributes(path, posix);
+					}
+					catch(NoSuchFileException nsfe) {
+						/* Dangling, so recorded as the link itself */
+					}
+				}
+				if (filter.test(path)) {
+					entries.add(entry(root.relativize(path), attrs));
+				}
+				if (attrs.isDirectory() && !link) {
+					walk(root, path, posix, filter, entries);
+				}
+			}
+		}
+	}
+
+	private static BasicFileAttributes readAttributes(Path path, boolean posix, LinkOption... options) throws IOException {
+		if (posix) {
+			return Files.readAttributes(path, PosixFileAttributes.class, options);
+		} else {
+			return Files.readAttributes(path, BasicFileAttributes.class, options);
+		}
+	}
+
+	public static FileTreeSnapshot empty(Path root) {
+		return new FileTreeSnapshot(root, new ArrayList<>());
+	}
+
+	/**
+	 * Create a snapshot from entries that are already known, for example from a {@link ContentManifest}.
+	 * They must be in an order where directories come before their children. 
+	 * 
+	 * @param root root of tree
+	 * @param entries entries
+	 * @return snapshot
+	 */
+	public static FileTreeSnapshot of(Path root, Collection<Entry> entries) {
+		return new FileTreeSnapshot(root, new ArrayList<>(entries));
+	}
+
+	static Entry entry(Path rel, BasicFileAttributes attrs) {
+		Optional<Posix> posix;
+		if (attrs instanceof PosixFileAttributes pattrs) {
+			posix = Optional.of(new Posix(pattrs.permissions(), Optional.of(pattrs.owner()), Optional.of(pattrs.group())));
+		} else {
+			posix = Optional.empty();
+		}
+		return new Entry(rel, attrs.isDirectory(), attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime(),
+				attrs.lastAccessTime(), attrs.creationTime(), posix, Optional.empty());
+	}
+
+	public Path root() {
+		return root;
+	}
+
+	/**
+	 * Resolve the real location of an entry.
+	 * 
+	 * @param entry entry
+	 * @return absolute location
+	 */
+	public Path resolve(Entry entry) {
+		return root.resolve(entry.path());
+	}
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	public Stream<Entry> stream() {
+		return entries.stream();
+	}
+
+	@Override
+	public Iterator<Entry> iterator() {
+		return entries.iterator();
+	}
+
+	public int files() {
+		return files;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long totalSize() {
+		return totalSize;
+	}
+}
@@ -23,25 +23,63 @@ package uk.co.bithatch.ninstall.lib;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFilePermission;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.liftlib.OS;
 
 public class IO {
 	
 	private final static boolean DELAYS = Boolean.getBoolean("ninstall.delays");
+	
+	/* Size of each channel transfer, and so how often progress is reported */
+	private final static long TRANSFER_CHUNK = 4 * 1024 * 1024;
+	
+	/* Files smaller than this are not worth starting a process to clone */
+	private final static long CLONE_THRESHOLD = 1024 * 1024;
+	
+	/* Devices that do not support cloning, so no more attempts are made */
+	private final static Set<Object> UNCLONEABLE = ConcurrentHashMap.newKeySet();
+	
+	/* Errors (in the C locale) that cp reports when a file system, or a pair of them, cannot clone */
+	private final static List<String> REFLINK_UNSUPPORTED = List.of(
+			"Operation not supported", 
+			"Invalid cross-device link", 
+			"Inappropriate ioctl for device", 
+			"Invalid argument", 
+			"Function not implemented");
     
     public interface FileAttrs {
         void set(Path target) throws IOException;
@@ -78,6 +116,14 @@ public class IO {
 		return Collections.unmodifiableSet(l);
 	}
 	
+	public static int toBitmask(Set<PosixFilePermission> permissions) {
+		var mode = 0;
+		for (var perm : permissions) {
+			mode |= toMask(perm);
+		}
+		return mode;
+	}
+	
 	/**
 	 * Get the bitmask flag value for a given permission.
 	 * 
@@ -101,7 +147,7 @@ public class IO {
 		case OTHERS_WRITE:
 			return 0x02;
 		case OTHERS_EXECUTE:
-			return 0x02;
+			return 0x01;
 		default:
 			return 0x100;
 		}
@@ -135,7 +181,8 @@ public class IO {
         }
         catch(DirectoryNotEmptyException dnee) {
             if(recursive) {
-                copyDir(from, to, options);
+                /* As with Files.move(), attributes go with the files */
+                copyDir(from, to, withCopyAttributes(options));
                 delete(from);
             }
             else
@@ -146,27 +193,420 @@ public class IO {
     }
     
     public static void copyDir(Path from, Path to, CopyOption... options) {
-        try {
-            Files.walk(from).forEach(source -> {
-                Path destination = Paths.get(to.toString(), source.toString()
-                  .substring(from.toString().length()));
-                try {
-                    Files.copy(source, destination, options);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+    	copyDir(from, to, Optional.empty(), options);
     }
     
+    /**
+     * Copy a directory tree. Sub-directories are copied in parallel using a fork-join
+     * pool shared by all I/O in this class (or the caller's pool, if already running in one), 
+     * so the common pool is never tied up with blocking I/O. A failure to copy one path does 
+     * not stop the rest being copied, but once complete, the first failure is thrown with any 
+     * others suppressed.
+     * <p>
+     * The progress total is increased as each directory is listed, and stepped as 
+     * each path is copied.
+     * 
+     * @param from source directory
+     * @param to target directory
+     * @param progress progress
+     * @param options copy options, as for {@link Files#copy(Path, Path, CopyOption...)}
+     */
+    public static void copyDir(Path from, Path to, Optional<Progress> progress, CopyOption... options) {
+    	var errors = new ConcurrentLinkedQueue<IOException>();
+    	var sprogress = progress.map(Progress::synchronizedProgress);
+    	sprogress.ifPresent(p -> p.adjustTotal(1));
+    	inPool(() -> copyTree(from, to, sprogress, errors, options));
+    	throwFirst(errors);
+    }
+
     public static void delete(Path path) {
-        ioRun(() -> {
-            try (var walk = Files.walk(path)) {
-                walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-            }
-        });
+    	delete(path, Optional.empty());
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it. Sub-directories are deleted in 
+     * parallel using the same fork-join pool as {@link #copyDir(Path, Path, Optional, CopyOption...)}. A failure to delete one path does not 
+     * stop the rest being deleted, but once complete, the first failure is thrown with
+     * any others suppressed.
+     * <p>
+     * The progress total is increased as each directory is listed, and stepped as 
+     * each path is deleted.
+     * 
+     * @param path path to delete
+     * @param progress progress
+     */
+    public static void delete(Path path, Optional<Progress> progress) {
+    	if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+    		throw new UncheckedIOException(new NoSuchFileException(path.toString()));
+    	}
+    	var errors = new ConcurrentLinkedQueue<IOException>();
+    	var sprogress = progress.map(Progress::synchronizedProgress);
+    	sprogress.ifPresent(p -> p.adjustTotal(1));
+    	if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+    		inPool(() -> deleteTree(path, sprogress, errors));
+    	else
+    		deleteTree(path, sprogress, errors);
+    	throwFirst(errors);
+    }
+    
+    private static void copyTree(Path source, Path target, Optional<Progress> progress, Queue<IOException> errors, CopyOption... options) {
+    	try {
+	    	if(Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) {
+	    		var opts = Arrays.asList(options);
+	    		if(Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+	    			if(!opts.contains(StandardCopyOption.REPLACE_EXISTING))
+	    				throw new FileAlreadyExistsException(target.toString());
+	    			else if(!Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS))
+	    				/* Never write through a link, or over a directory */
+	    				Files.delete(target);
+	    		}
+	    		transfer(source, target);
+	    		if(opts.contains(StandardCopyOption.COPY_ATTRIBUTES)) {
+	    			copyModeAndTimes(source, target);
+	    		}
+	    	}
+	    	else if(Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+	    		if(!Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+	    			Files.copy(source, target, options);
+	    		}
+	    		
+	    		var subdirs = new ArrayList<ForkJoinTask<?>>();
+	    		try(var stream = Files.newDirectoryStream(source)) {
+	    			for(var child : stream) {
+	    				var childTarget = target.resolve(child.getFileName().toString());
+	    				progress.ifPresent(p -> p.adjustTotal(1));
+	    				if(Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+	    					subdirs.add(ForkJoinTask.adapt(() -> copyTree(child, childTarget, progress, errors, options)));
+	    				}
+	    				else {
+	    					copyTree(child, childTarget, progress, errors, options);
+	    				}
+	    			}
+	    		}
+	    		ForkJoinTask.invokeAll(subdirs);
+	    	}
+	    	else {
+	    		/* Links are copied as links */
+	    		var linkOptions = Arrays.copyOf(options, options.length + 1);
+	    		linkOptions[options.length] = LinkOption.NOFOLLOW_LINKS;
+	    		Files.copy(source, target, linkOptions);
+	    	}
+    	}
+    	catch(IOException ioe) {
+    		errors.add(ioe);
+    	}
+    	finally {
+    		progress.ifPresent(p -> p.step());
+    	}
+    }
+    
+    private static void deleteTree(Path path, Optional<Progress> progress, Queue<IOException> errors) {
+    	try {
+	    	if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+	    		var subdirs = new ArrayList<ForkJoinTask<?>>();
+	    		try(var stream = Files.newDirectoryStream(path)) {
+	    			for(var child : stream) {
+	    				progress.ifPresent(p -> p.adjustTotal(1));
+	    				if(Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+	    					subdirs.add(ForkJoinTask.adapt(() -> deleteTree(child, progress, errors)));
+	    				}
+	    				else {
+	    					deleteTree(child, progress, errors);
+	    				}
+	    			}
+	    		}
+	    		ForkJoinTask.invokeAll(subdirs);
+	    	}
+	    	Files.deleteIfExists(path);
+    	}
+    	catch(IOException ioe) {
+    		errors.add(ioe);
+    	}
+    	finally {
+    		progress.ifPresent(p -> p.step());
+    	}
+    }
+    
+    private static void inPool(Runnable task) {
+    	if(ForkJoinTask.inForkJoinPool()) {
+    		/* Already a worker (e.g. a nested copy or delete), so fork in the caller's pool */
+    		task.run();
+    	}
+    	else {
+    		IOPool.POOL.invoke(ForkJoinTask.adapt(task));
+    	}
+    }
+    
+    private static CopyOption[] withCopyAttributes(CopyOption... options) {
+    	if(Arrays.asList(options).contains(StandardCopyOption.COPY_ATTRIBUTES))
+    		return options;
+    	var copyOptions = Arrays.copyOf(options, options.length + 1);
+    	copyOptions[options.length] = StandardCopyOption.COPY_ATTRIBUTES;
+    	return copyOptions;
+    }
+    
+    /* Created on first use. Worker threads are daemons and idle ones time out, so nothing needs shutting down */
+    private final static class IOPool {
+    	private final static ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    
+    private static void throwFirst(Queue<IOException> errors) {
+    	var first = errors.poll();
+    	if(first != null) {
+    		errors.forEach(first::addSuppressed);
+    		throw new UncheckedIOException(first);
+    	}
+    }
+
+    /**
+     * Create a bounded pool of worker threads. At most <code>parallelism</code> tasks
+     * will run at once, with a small queue of pending tasks behind them. When the
+     * queue is full, the submitting thread runs the task itself, which naturally slows
+     * down the producer.
+     * 
+     * @param name prefix for thread names
+     * @param parallelism maximum number of worker threads
+     * @return executor
+     */
+    public static ExecutorService workers(String name, int parallelism) {
+    	var threads = Math.max(1, parallelism);
+    	return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+    			new ArrayBlockingQueue<>(threads * 4), 
+    			threads(name),
+    			new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Create a factory for numbered daemon threads.
+     * 
+     * @param name prefix for thread names
+     * @return thread factory
+     */
+    public static ThreadFactory threads(String name) {
+    	var counter = new AtomicInteger();
+    	return r -> {
+    		var thread = new Thread(r, name + "-" + counter.incrementAndGet());
+    		thread.setDaemon(true);
+    		return thread;
+    	};
+    }
+
+    public static void transfer(Path source, Path target) throws IOException {
+    	transfer(source, target, Optional.empty());
+    }
+
+    public static void transfer(Path source, Path target, Progress progress) throws IOException {
+    	transfer(source, target, Optional.of(progress));
+    }
+
+    /**
+     * Copy the contents of one file to another, creating or truncating the target.
+     * When both files are on the default file system, {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * is used, allowing the kernel to copy the data itself (e.g. <code>copy_file_range</code> or
+     * <code>sendfile</code>) without it passing through the heap. Otherwise, or if the channel
+     * stops transferring early, the remaining content is copied using streams.
+     * <p>
+     * Progress is stepped by the number of bytes copied, once for each chunk.
+     * 
+     * @param source source file
+     * @param target target file
+     * @param progress progress
+     * @throws IOException on error
+     */
+    public static void transfer(Path source, Path target, Optional<Progress> progress) throws IOException {
+    	try(var in = Files.newByteChannel(source);
+    		var out = Files.newByteChannel(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+    		
+    		var position = 0L;
+    		if(in instanceof FileChannel fin && out instanceof FileChannel fout) {
+    			var size = fin.size();
+    			while(position < size) {
+    				var transferred = fin.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), fout);
+    				if(transferred < 1) {
+    					break;
+    				}
+    				position += transferred;
+    				progress.ifPresent(p -> p.step(transferred));
+    			}
+    			in.position(position);
+    		}
+    		
+    		var sout = Channels.newOutputStream(out);
+    		Channels.newInputStream(in).transferTo(progress.isPresent() ? new ProgressOutputStream(sout, progress.get()) : sout);
+    	}
+    }
+
+    /**
+     * Place a file at a target location using whatever method the {@link CopyStrategy} selects. 
+     * If that method is not possible, the content is copied using {@link #transfer(Path, Path, Optional)}. 
+     * An existing target is replaced. A clone that fails for any reason other than the file 
+     * system not supporting it is thrown rather than copied.
+     * 
+     * @param strategy strategy
+     * @param source source file
+     * @param target target file
+     * @param progress progress
+     * @return method actually used
+     * @throws IOException on error
+     */
+    public static CopyStrategy.Method copy(CopyStrategy strategy, Path source, Path target, Optional<Progress> progress) throws IOException {
+    	var method = strategy.select(source, target, sameStore(source, target));
+    	if(method != CopyStrategy.Method.COPY) {
+	    	var size = Files.size(source);
+	    	if(place(method, source, target, size)) {
+	    		progress.ifPresent(p -> p.step(size));
+	    		return method;
+	    	}
+    	}
+    	transfer(source, target, progress);
+    	return CopyStrategy.Method.COPY;
+    }
+    
+    /**
+     * Get whether two paths are on the same file store. If either path does not 
+     * exist, its nearest existing parent is used.
+     * 
+     * @param path1 path 1
+     * @param path2 path 2
+     * @return same store
+     * @throws IOException on error
+     */
+    public static boolean sameStore(Path path1, Path path2) throws IOException {
+    	var key1 = storeKey(path1);
+    	return key1.isPresent() && key1.equals(storeKey(path2));
+    }
+
+    /**
+     * Get an object that identifies the file store of a path, and that is equal
+     * to that of any other path on the same store. If the path does not exist, its
+     * nearest existing parent is used. 
+     * 
+     * @param path path
+     * @return store key, or empty if no part of the path exists
+     * @throws IOException on error
+     */
+    public static Optional<Object> storeKey(Path path) throws IOException {
+    	var existing = existingParent(path);
+    	if(existing == null) {
+    		return Optional.empty();
+    	}
+    	try {
+    		/* Much cheaper than comparing FileStore, which may scan the mount table */
+    		return Optional.of(Files.getAttribute(existing, "unix:dev"));
+    	}
+    	catch(UnsupportedOperationException | IllegalArgumentException e) {
+    		return Optional.of(Files.getFileStore(existing));
+    	}
+    }
+
+    /**
+     * Get the number of bytes available to this user on the file store of a path. If the
+     * path does not exist, its nearest existing parent is used.
+     * 
+     * @param path path
+     * @return usable space in bytes
+     * @throws IOException on error
+     */
+    public static long usableSpace(Path path) throws IOException {
+    	var existing = existingParent(path);
+    	if(existing == null)
+    		throw new NoSuchFileException(path.toString());
+    	return Files.getFileStore(existing).getUsableSpace();
+    }
+
+    private static Path existingParent(Path path) {
+    	var parent = path.toAbsolutePath();
+    	while(parent != null && !Files.exists(parent)) {
+    		parent = parent.getParent();
+    	}
+    	return parent;
+    }
+
+    private static boolean place(CopyStrategy.Method method, Path source, Path target, long size) throws IOException {
+    	if(method == CopyStrategy.Method.CLONE) {
+    		return size >= CLONE_THRESHOLD && cloneFile(source, target);
+    	}
+    	try {
+	    	switch(method) {
+	    	case MOVE:
+	    		Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    		return true;
+	    	case LINK:
+	    		Files.deleteIfExists(target);
+	    		Files.createLink(target, source);
+	    		return true;
+	    	default:
+	    		return false;
+	    	}
+    	}
+    	catch(IOException | UnsupportedOperationException e) {
+    		return false;
+    	}
+    }
+    
+    /**
+     * Clone a file using <code>cp --reflink=always</code>. Java has no API for the
+     * <code>FICLONE</code> ioctl, so this costs a process per file, which is why only 
+     * files of at least {@link #CLONE_THRESHOLD} bytes are cloned.
+     * <p>
+     * If <code>cp</code> reports that the file system cannot clone, the device is remembered
+     * and <code>false</code> returned so the caller copies instead. Any other failure 
+     * is thrown.
+     */
+    private static boolean cloneFile(Path source, Path target) throws IOException {
+    	if(!OS.isLinux()) {
+    		return false;
+    	}
+    	
+    	var dir = existingParent(target);
+    	var dev = Files.getAttribute(dir, "unix:dev");
+    	if(UNCLONEABLE.contains(dev)) {
+    		return false;
+    	}
+    	
+    	var pb = new ProcessBuilder("cp", "--reflink=always", source.toAbsolutePath().toString(), target.toAbsolutePath().toString());
+    	pb.environment().put("LC_ALL", "C");
+    	pb.redirectErrorStream(true);
+    	String output;
+    	int exit;
+    	try {
+    		var process = pb.start();
+    		try(var in = process.getInputStream()) {
+    			output = new String(in.readAllBytes()).trim();
+    		}
+    		exit = process.waitFor();
+    	}
+    	catch(InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		throw new IOException("Interrupted.", ie);
+    	}
+    	
+    	if(exit == 0) {
+    		return true;
+    	}
+    	else if(REFLINK_UNSUPPORTED.stream().anyMatch(output::endsWith)) {
+    		UNCLONEABLE.add(dev);
+    		return false;
+    	}
+    	else {
+    		throw new IOException(MessageFormat.format("Failed to clone ''{0}'' to ''{1}''. {2}", source, target, output));
+    	}
+    }
+
+    /**
+     * Copy the permissions (if supported) and last modified time of one path to another.
+     * Unlike {@link #attrs(Path)}, ownership is left alone.
+     * 
+     * @param source source path
+     * @param target target path
+     * @throws IOException on error
+     */
+    public static void copyModeAndTimes(Path source, Path target) throws IOException {
+    	var posix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+    	if(posix != null) {
+    		Files.setPosixFilePermissions(target, posix.readAttributes().permissions());
+    	}
+    	Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
     }
 
     public static void ioRun(IORun task) {
@@ -186,61 +626,60 @@ public class IO {
     }
 
     public static void ioRunInTempDir(IORunInDir task) {
-        try {
-        	var tmpdir = Files.createTempDirectory("ninstall");
-        	try {
-        		task.run(tmpdir);
-        	}
-        	finally {
-        		delete(tmpdir);
-        	}
-        } catch (IOException ioe) {
-            throw new UncheckedIOException(ioe);
-        }
+        ioCallInTempDir(d -> {
+        	task.run(d);
+        	return null;
+        });
     }
 
     public static <T> T ioCallInTempDir(IOCallInDir<T> task) {
         try {
-        	var tmpdir = Files.createTempDirectory("ninstall");
-        	try {
-        		return task.call(tmpdir);
-        	}
-        	finally {
-        		delete(tmpdir);
-        	}
+        	return inTempDir(Files.createTempDirectory("ninstall"), task);
         } catch (IOException ioe) {
             throw new UncheckedIOException(ioe);
         }
     }
 
     public static void ioRunInTempDir(Path dir, IORunInDir task) {
-        try {
-        	var tmpdir = Files.createTempDirectory(dir, ".ninstall");
-        	try {
-        		task.run(tmpdir);
-        	}
-        	finally {
-        		delete(tmpdir);
-        	}
-        } catch (IOException ioe) {
-            throw new UncheckedIOException(ioe);
-        }
+        ioCallInTempDir(dir, d -> {
+        	task.run(d);
+        	return null;
+        });
     }
 
     public static <T> T ioCallInTempDir(Path dir, IOCallInDir<T> task) {
         try {
-        	var tmpdir = Files.createTempDirectory(dir, ".ninstall");
-        	try {
-        		return task.call(tmpdir);
-        	}
-        	finally {
-        		delete(tmpdir);
-        	}
+        	return inTempDir(Files.createTempDirectory(dir, ".ninstall"), task);
         } catch (IOException ioe) {
             throw new UncheckedIOException(ioe);
         }
     }
 
+    /* Run a task in a temporary directory, then remove it. Removal is best effort. If the
+     * task failed, a removal failure is suppressed by the task's exception, never replacing it */
+    private static <T> T inTempDir(Path tmpdir, IOCallInDir<T> task) throws IOException {
+    	T result;
+    	try {
+    		result = task.call(tmpdir);
+    	}
+    	catch(IOException | RuntimeException | Error e) {
+    		deleteQuietly(tmpdir).ifPresent(e::addSuppressed);
+    		throw e;
+    	}
+    	deleteQuietly(tmpdir);
+    	return result;
+    }
+    
+    private static Optional<RuntimeException> deleteQuietly(Path path) {
+    	try {
+    		delete(path);
+    		return Optional.empty();
+    	}
+    	catch(RuntimeException re) {
+    		return Optional.of(re);
+    	}
+    }
+
     public static String displayPath(Path path) {
         var realPath = path.toAbsolutePath();
         var realCwd = cwd().toAbsolutePath();
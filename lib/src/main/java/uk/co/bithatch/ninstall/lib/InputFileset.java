@@ -23,7 +23,6 @@ package uk.co.bithatch.ninstall.lib;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -195,14 +194,26 @@ public final class InputFileset {
 	}
 
 	public Stream<Path> paths(Path defaultBase) {
+		var snapshot = snapshot(defaultBase);
+		return snapshot.stream().map(snapshot::resolve);
+	}
+
+	/**
+	 * Walk the matching paths once, capturing their attributes as well, so that 
+	 * callers do not need to read them again.
+	 * 
+	 * @param defaultBase base to use if this fileset has none of its own
+	 * @return snapshot
+	 */
+	public FileTreeSnapshot snapshot(Path defaultBase) {
+		var base = this.base.orElse(defaultBase);
 		
 		if(condition.isPresent() && !condition.get().evaluate(this)) {
-			return Stream.empty();
+			return FileTreeSnapshot.empty(base);
 		}
 		
 		try {
-			var base = this.base.orElse(defaultBase);
-			return Files.walk(base).filter(path -> {
+			return FileTreeSnapshot.of(base, path -> {
 				if (path.equals(base))
 					return false;
 				var relPath = base.relativize(path);
@@ -217,7 +228,6 @@ public final class InputFileset {
 		} catch (IOException ioe) {
 			throw new UncheckedIOException(ioe);
 		}
-
 	}
 
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import uk.co.bithatch.ninstall.lib.CopyStrategy.Method;
+
+/**
+ * Where the files to install come from. Either a directory that the payload has
+ * already been extracted to, or the payload archive itself, in which case each
+ * entry is decompressed straight into its final location.
+ */
+public interface InstallSource extends Closeable {
+	
+	/**
+	 * Open the most appropriate source for a location. If a payload archive is given, 
+	 * for example by the self extractor through {@link SelfExtractor#ARCHIVE_ENV}, it is used 
+	 * directly, otherwise the location is expected to contain the extracted payload. 
+	 * Files are never taken to be the archive because of their name.
+	 * 
+	 * @param location location
+	 * @param archive payload archive
+	 * @param filter filter, given the absolute path each entry would have if extracted to the location
+	 * @return source
+	 */
+	static InstallSource of(Path location, Optional<Path> archive, Predicate<? super Path> filter) {
+		if(archive.isPresent() && Files.isRegularFile(archive.get())) {
+			return new ArchiveSource(location, archive.get(), filter);
+		}
+		else {
+			return new DirectorySource(location, filter);
+		}
+	}
+
+	/**
+	 * Get a snapshot of every entry that will be installed.
+	 * 
+	 * @return snapshot
+	 */
+	FileTreeSnapshot snapshot();
+
+	/**
+	 * Open the content of a file entry.
+	 * 
+	 * @param entry entry
+	 * @return stream
+	 * @throws IOException on error
+	 */
+	InputStream open(FileTreeSnapshot.Entry entry) throws IOException;
+
+	/**
+	 * Place a file entry at the target, which must not be a directory.
+	 * 
+	 * @param strategy strategy to use where the source supports it
+	 * @param entry entry
+	 * @param target target
+	 * @param progress progress
+	 * @return method actually used
+	 * @throws IOException on error
+	 */
+	Method install(CopyStrategy strategy, FileTreeSnapshot.Entry entry, Path target, Optional<Progress> progress) throws IOException;
+	
+	/**
+	 * Get how many bytes placing a file entry at the target will need on the target's
+	 * file store. By default this is the size of the entry.
+	 * 
+	 * @param strategy strategy to use where the source supports it
+	 * @param entry entry
+	 * @param target target
+	 * @return bytes needed
+	 * @throws IOException on error
+	 */
+	default long requiredSpace(CopyStrategy strategy, FileTreeSnapshot.Entry entry, Path target) throws IOException {
+		return entry.size();
+	}
+	
+	@Override
+	default void close() {
+	}
+
+	/**
+	 * An already extracted payload.
+	 */
+	public final static class DirectorySource implements InstallSource {
+		private final FileTreeSnapshot snapshot;
+		private final Path location;
+		private Optional<Boolean> sameStore = Optional.empty();
+
+		DirectorySource(Path location, Predicate<? super Path> filter) {
+			this.location = location;
+			try {
+				var content = ContentManifest.find(location);
+				if(content.isPresent()) {
+					/* Packaged with a content manifest, no need to scan the extracted files */
+					snapshot = content.get().snapshot(location, filter);
+				}
+				else {
+					snapshot = FileTreeSnapshot.of(location, filter);
+				}
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		@Override
+		public FileTreeSnapshot snapshot() {
+			return snapshot;
+		}
+
+		@Override
+		public InputStream open(FileTreeSnapshot.Entry entry) throws IOException {
+			return Files.newInputStream(snapshot.resolve(entry));
+		}
+
+		@Override
+		public Method install(CopyStrategy strategy, FileTreeSnapshot.Entry entry, Path target, Optional<Progress> progress) throws IOException {
+			return IO.copy(strategy, snapshot.resolve(entry), target, progress);
+		}
+
+		@Override
+		public long requiredSpace(CopyStrategy strategy, FileTreeSnapshot.Entry entry, Path target) throws IOException {
+			/* Moved or linked files take no more space on the same store */
+			if(sameStore.isEmpty()) {
+				sameStore = Optional.of(IO.sameStore(location, target));
+			}
+			if(sameStore.get()) {
+				var method = strategy.select(snapshot.resolve(entry), target, true);
+				if(method == Method.MOVE || method == Method.LINK)
+					return 0;
+			}
+			return entry.size();
+		}
+	}
+
+	/**
+	 * The payload archive. Entries are read using random access, so may be
+	 * installed concurrently. Commons Compress is used as it tolerates the
+	 * non-standard extra data written by {@link Archives#putNextEntry}, which
+	 * the JDK's own {@link java.util.zip.ZipFile} rejects.
+	 */
+	public final static class ArchiveSource implements InstallSource {
+		private final ZipFile zip;
+		private final FileTreeSnapshot snapshot;
+		private final Map<Path, ZipArchiveEntry> entries = new HashMap<>();
+
+		ArchiveSource(Path location, Path archive, Predicate<? super Path> filter) {
+			try {
+				zip = ZipFile.builder().setPath(archive).get();
+				try {
+					var manifest = zip.getEntry(ContentManifest.FILENAME);
+					var content = new ContentManifest.Builder();
+					for(var en = zip.getEntries(); en.hasMoreElements(); ) {
+						var entry = en.nextElement();
+						var name = entry.getName();
+						if(name.equals(ContentManifest.FILENAME))
+							continue;
+						
+						var path = Paths.get(name);
+						entries.put(path, entry);
+						if(manifest == null) {
+							var sized = Archives.hardLink(entry).map(n -> entries.get(Paths.get(n))).orElse(entry);
+							content.add(new ContentManifest.Entry(path.toString(), entry.isDirectory(), 
+									entry.isDirectory() ? 0 : sized.getSize(), Archives.mode(entry), entry.getLastModifiedDate().getTime(), Optional.empty()));
+						}
+					}
+					
+					if(manifest == null) {
+						snapshot = content.build().snapshot(location, filter);
+					}
+					else {
+						try(var in = zip.getInputStream(manifest)) {
+							snapshot = ContentManifest.read(in).snapshot(location, filter);
+						}
+					}
+				}
+				catch(IOException | RuntimeException e) {
+					zip.close();
+					throw e;
+				}
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		@Override
+		public FileTreeSnapshot snapshot() {
+			return snapshot;
+		}
+
+		@Override
+		public InputStream open(FileTreeSnapshot.Entry entry) throws IOException {
+			return zip.getInputStream(content(zipEntry(entry)));
+		}
+
+		@Override
+		public Method install(CopyStrategy strategy, FileTreeSnapshot.Entry entry, Path target, Optional<Progress> progress) throws IOException {
+			var zipEntry = zipEntry(entry);
+			var link = Archives.link(zipEntry);
+			if(link.isPresent()) {
+				Files.deleteIfExists(target);
+				Files.createSymbolicLink(target, Paths.get(link.get()));
+			}
+			else {
+				try(var in = zip.getInputStream(content(zipEntry))) {
+					OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+					try(var pout = progress.isPresent() ? new ProgressOutputStream(out, progress.get()) : out) {
+						in.transferTo(pout);
+					}
+				}
+			}
+			return Method.COPY;
+		}
+
+		@Override
+		public void close() {
+			try {
+				zip.close();
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		/* Files are installed in any order, so a hard link can't rely on the file it links
+		 * to being there yet. Its content is copied from the linked entry instead. */
+		private ZipArchiveEntry content(ZipArchiveEntry zipEntry) throws IOException {
+			var hardLink = Archives.hardLink(zipEntry);
+			if(hardLink.isEmpty())
+				return zipEntry;
+			var linked = entries.get(Paths.get(hardLink.get()));
+			if(linked == null)
+				throw new IOException("No entry `" + hardLink.get() + "` for hard link `" + zipEntry.getName() + "` in payload archive.");
+			return linked;
+		}
+
+		private ZipArchiveEntry zipEntry(FileTreeSnapshot.Entry entry) throws IOException {
+			var zipEntry = entries.get(entry.path());
+			if(zipEntry == null)
+				throw new IOException("No entry `" + entry.path() + "` in payload archive.");
+			return zipEntry;
+		}
+	}
+}
@@ -20,34 +20,31 @@
  */
 package uk.co.bithatch.ninstall.lib;
 
-import static uk.co.bithatch.ninstall.lib.IO.ioRun;
-
-import java.io.BufferedReader;
 import java.io.Closeable;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import uk.co.bithatch.ninstall.lib.JournalLog.Type;
+
+/**
+ * The paths created by a step, so they may be removed again later. All journals of an
+ * installation are records in its {@link JournalLog}. The first path logged by a
+ * journal supersedes any paths previously logged, and if the journal's {@link Stash}
+ * is restored, those previous paths are reinstated. 
+ */
 public final class Journal implements Closeable {
 
 	public final static class Builder {
 		private final String name;
-		private final SetupAppContext<?, ?> context;
+		private final JournalLog log;
 		private Optional<Stash> stash = Optional.empty();
 		private Optional<Consumer<Journal>> onDelete = Optional.empty();
 
-		public Builder(SetupAppContext<?, ?> context, String name) {
+		public Builder(JournalLog log, String name) {
 			this.name = name;
-			this.context = context;
+			this.log = log;
 		}
 
 		public Builder onDelete(Consumer<Journal> onDelete) {
@@ -66,57 +63,56 @@ public final class Journal implements Closeable {
 	}
 
 	private final String name;
-	private final Path journal;
-	private final SetupAppContext<?, ?> context;
+	private final JournalLog log;
 	private final Optional<Stash> stash;
 	private final Optional<Consumer<Journal>> onDelete;
 
 	private int logs;
+	private boolean begun;
+	private boolean revertable;
 
 	private Journal(Builder builder) {
-		context = builder.context;
 		name = builder.name;
+		log = builder.log;
 		stash = builder.stash;
 		onDelete = builder.onDelete;
-
-		journal = context.installLocation().resolve("." + name + ".jnl");
 	}
 
+	/**
+	 * Get the logged paths, most recently logged first. As directories are logged 
+	 * before their contents, children always come before their parents.
+	 * 
+	 * @return paths
+	 */
 	public Stream<Path> paths() {
-		var paths = new ArrayList<Path>();
-		if (Files.exists(journal)) {
-			try (var in = new BufferedReader(Files.newBufferedReader(journal))) {
-				String line;
-				while ((line = in.readLine()) != null) {
-					paths.add(Paths.get(line));
-				}
-			} catch (IOException ioe) {
-				throw new UncheckedIOException(ioe);
-			}
-		}
-		return paths.stream().distinct().sorted(Path::compareTo).sorted(Comparator.reverseOrder());
+		return log.paths(name);
 	}
 
-	public void log(Path path) {
-		if (logs == 0 && Files.exists(journal)) {
-			stash.ifPresent(s -> {
-				s.stash(journal);
-			});
+	public synchronized void log(Path path) {
+		if (!begun) {
+			log.append(Type.BEGIN, name);
+			begun = true;
+			revertable = true;
+			stash.ifPresent(s -> s.onRestore(this::revert));
 		}
-
-		try (var out = new PrintWriter(
-				Files.newBufferedWriter(journal, StandardOpenOption.CREATE, StandardOpenOption.APPEND), true)) {
-			out.println(path.toString());
-		} catch (IOException ioe) {
-			throw new UncheckedIOException(ioe);
+		try {
+			log.append(Type.LOG, name, Optional.of(path));
 		} finally {
 			logs++;
 		}
 	}
 
-	public void delete() {
-		ioRun(() -> Files.deleteIfExists(journal));
-		stash.ifPresent(s -> s.unstash(journal));
+	/**
+	 * Write any buffered log entries to the journal log.
+	 */
+	public void flush() {
+		log.flush();
+	}
+
+	public synchronized void delete() {
+		log.append(Type.DELETE, name);
+		begun = false;
+		revertable = false;
 		logs = 0;
 		onDelete.ifPresent(od -> od.accept(this));
 	}
@@ -126,17 +122,8 @@ public final class Journal implements Closeable {
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
 		logs = 0;
-		if (Files.exists(journal)) {
-			try (var out = new PrintWriter(Files.newBufferedWriter(journal, StandardOpenOption.CREATE), true)) {
-				paths().forEach(p -> out.println(p.toString()));
-			} catch (IOException ioe) {
-				throw new UncheckedIOException(ioe);
-			} finally {
-				logs++;
-			}
-		}
 	}
 
 	public Stash stash() {
@@ -146,4 +133,13 @@ public final class Journal implements Closeable {
 	public String name() {
 		return name;
 	}
+
+	private synchronized void revert() {
+		if(revertable) {
+			log.append(Type.REVERT, name);
+			revertable = false;
+			begun = false;
+			logs = 0;
+		}
+	}
 }
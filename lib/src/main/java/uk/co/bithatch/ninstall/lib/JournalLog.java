@@ -0,0 +1,669 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A single binary write-ahead log holding the records of every {@link Journal} for an
+ * installation.
+ * <p>
+ * Records are appended in blocks, one per flush. Paths within a block are prefix
+ * compressed against the previous path, and each block is framed by its length at
+ * both ends along with a CRC, so the log may be read backwards one block at a time
+ * and a torn final block is detected and discarded when the log is next opened.
+ * <p>
+ * Each journal's records are superseded by a {@link Type#BEGIN} (the journal was
+ * rewritten) or {@link Type#DELETE}, and a {@link Type#REVERT} cancels everything
+ * back to the last {@link Type#BEGIN}. The live paths of a journal are therefore
+ * found by reading backwards until one of these is met, without holding more than
+ * a block of records in memory.
+ * <p>
+ * A path logged again by a journal replaces the earlier record if that is still in
+ * the pending block, so a block never holds duplicates. A path logged again after the 
+ * earlier record was written is not detected, and is returned once for each time it 
+ * was written.
+ * <p>
+ * When closed, the log is compacted if any journal was reverted or deleted, or if it
+ * has grown past a threshold.
+ */
+public final class JournalLog implements Closeable {
+	
+	public static final String FILENAME = ".ninstall.journal";
+
+	private static final int MAGIC = 0x4e494a4c;
+	private static final int BLOCK_MAGIC = 0x4e494a42;
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	private static final int TRAILER = 12;
+	private static final byte[] NONE = new byte[0];
+
+	public enum Type {
+		LOG, BEGIN, REVERT, DELETE
+	}
+
+	public record Record(Type type, String name, Optional<Path> path) {
+	}
+
+	public final static class Builder {
+		private final Path file;
+		private int flushEntries = 256;
+		private Duration flushInterval = Duration.ofSeconds(1);
+		private long compactThreshold = 1024 * 1024;
+		private boolean sync;
+
+		public Builder(Path file) {
+			this.file = file;
+		}
+
+		/**
+		 * Set when buffered records are written to the log. Records are written when
+		 * either the number of pending records is reached, or the interval has passed
+		 * since the last write when the next record is appended. They are also always
+		 * written when flushed explicitly, and before the log is read.
+		 * 
+		 * @param flushEntries maximum number of pending records
+		 * @param flushInterval maximum time between writes
+		 * @return this for chaining
+		 */
+		public Builder withFlushPolicy(int flushEntries, Duration flushInterval) {
+			if(flushEntries < 1)
+				throw new IllegalArgumentException("Must flush at least every record.");
+			this.flushEntries = flushEntries;
+			this.flushInterval = flushInterval;
+			return this;
+		}
+
+		/**
+		 * Set the size in bytes the log must reach before it is compacted when closed, 
+		 * even if no journal was reverted or deleted. 
+		 * 
+		 * @param compactThreshold size in bytes
+		 * @return this for chaining
+		 */
+		public Builder withCompactThreshold(long compactThreshold) {
+			if(compactThreshold < 0)
+				throw new IllegalArgumentException("Compact threshold may not be negative.");
+			this.compactThreshold = compactThreshold;
+			return this;
+		}
+
+		public Builder withSync() {
+			return withSync(true);
+		}
+
+		/**
+		 * Set whether every write of the log is also forced to the storage device.
+		 * 
+		 * @param sync sync
+		 * @return this for chaining
+		 */
+		public Builder withSync(boolean sync) {
+			this.sync = sync;
+			return this;
+		}
+
+		public JournalLog build() {
+			return new JournalLog(this);
+		}
+	}
+	
+	private final Path file;
+	private final int flushEntries;
+	private final long flushInterval;
+	private final long compactThreshold;
+	private final boolean sync;
+	private final List<Record> pending = new ArrayList<>();
+	
+	private FileChannel channel;
+	private long lastFlush;
+	private boolean superseded;
+
+	private JournalLog(Builder builder) {
+		file = builder.file;
+		flushEntries = builder.flushEntries;
+		flushInterval = builder.flushInterval.toNanos();
+		compactThreshold = builder.compactThreshold;
+		sync = builder.sync;
+	}
+	
+	public Path file() {
+		return file;
+	}
+
+	public synchronized void append(Type type, String name) {
+		append(type, name, Optional.empty());
+	}
+
+	public synchronized void append(Type type, String name, Optional<Path> path) {
+		if(type == Type.LOG && path.isEmpty())
+			throw new IllegalArgumentException("Log records must have a path.");
+		if(pending.isEmpty())
+			lastFlush = System.nanoTime();
+		if(type == Type.LOG)
+			removePending(name, path.get());
+		else if(type == Type.REVERT || type == Type.DELETE)
+			superseded = true;
+		pending.add(new Record(type, name, path));
+		if (pending.size() >= flushEntries || System.nanoTime() - lastFlush >= flushInterval) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write any buffered records to the log as a single block. If the directory the log
+	 * is in does not exist yet, the records are kept until it does.
+	 */
+	public synchronized void flush() {
+		if(pending.isEmpty() || (channel == null && !Files.isDirectory(file.toAbsolutePath().getParent())))
+			return;
+		var start = -1L;
+		try {
+			open();
+			start = channel.size();
+			var body = encode(pending);
+			var crc = new CRC32();
+			crc.update(body);
+			var buf = ByteBuffer.allocate(4 + body.length + TRAILER);
+			buf.putInt(body.length);
+			buf.put(body);
+			buf.putInt((int)crc.getValue());
+			buf.putInt(body.length);
+			buf.putInt(BLOCK_MAGIC);
+			buf.flip();
+			var pos = start;
+			while(buf.hasRemaining()) {
+				pos += channel.write(buf, pos);
+			}
+			if(sync) {
+				channel.force(false);
+			}
+			pending.clear();
+			lastFlush = System.nanoTime();
+		} catch (IOException ioe) {
+			/* Records stay pending for the next flush, so a partially written block
+			 * is removed rather than left in front of them */
+			if(start >= 0) {
+				try {
+					channel.truncate(start);
+				}
+				catch(IOException tioe) {
+					ioe.addSuppressed(tioe);
+				}
+			}
+			throw new UncheckedIOException(ioe);
+		}
+	}
+	
+	/**
+	 * Get the live paths of a journal, most recently logged first. 
+	 * 
+	 * @param name journal name
+	 * @return paths
+	 */
+	public Stream<Path> paths(String name) {
+		return stream(live(name::equals)).map(r -> r.path().get());
+	}
+	
+	/**
+	 * Get the names of all journals that have live paths.
+	 * 
+	 * @return names
+	 */
+	public Set<String> names() {
+		var names = new LinkedHashSet<String>();
+		live(n -> true).forEachRemaining(r -> names.add(r.name()));
+		return names;
+	}
+
+	/**
+	 * Flush and close the underlying file without compacting it, for example so it may
+	 * be moved. It is re-opened if any more records are appended or read.
+	 */
+	public synchronized void release() {
+		flush();
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the log so it only contains live paths, in the same order. If there are
+	 * none, the log is deleted.
+	 */
+	public synchronized void compact() {
+		flush();
+		if(!Files.exists(file)) {
+			return;
+		}
+		
+		var reversed = file.resolveSibling(file.getFileName() + ".rev");
+		var compacted = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			/* Live records are found newest first, so are written to one log in that
+			 * order, then read back backwards in to another to restore the order */
+			var any = false;
+			var rev = new Builder(reversed).withFlushPolicy(4096, Duration.ofDays(1)).build();
+			try {
+				var it = live(n -> true);
+				while(it.hasNext()) {
+					var r = it.next();
+					rev.append(Type.LOG, r.name(), r.path());
+					any = true;
+				}
+			}
+			finally {
+				rev.release();
+			}
+			
+			if(any) {
+				var out = new Builder(compacted).withFlushPolicy(4096, Duration.ofDays(1)).withSync(sync).build();
+				try {
+					rev.reverse().forEachRemaining(r -> out.append(r.type(), r.name(), r.path()));
+				}
+				finally {
+					out.release();
+					rev.release();
+				}
+				release();
+				Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			else {
+				release();
+				Files.delete(file);
+			}
+			superseded = false;
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		finally {
+			IO.ioRun(() -> {
+				Files.deleteIfExists(reversed);
+				Files.deleteIfExists(compacted);
+			});
+		}
+	}
+
+	/**
+	 * Flush, compact if any journal was reverted or deleted since the last compaction
+	 * or the log has reached the compaction threshold, and close the underlying file. 
+	 */
+	@Override
+	public synchronized void close() {
+		flush();
+		if(superseded || size() >= compactThreshold) {
+			compact();
+		}
+		release();
+		
+		/* Directory never created, so the records can never be written */
+		pending.clear();
+	}
+	
+	private long size() {
+		try {
+			if(channel != null)
+				return channel.size();
+			else if(Files.exists(file))
+				return Files.size(file);
+			else
+				return 0;
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+	
+	/* Remove an earlier record of the same path in the pending block, unless the journal 
+	 * has since begun again, been reverted or deleted, in which case it is not a duplicate */
+	private void removePending(String name, Path path) {
+		for(var i = pending.size() - 1 ; i >= 0; i--) {
+			var r = pending.get(i);
+			if(r.name().equals(name)) {
+				if(r.type() != Type.LOG)
+					return;
+				else if(r.path().get().equals(path)) {
+					pending.remove(i);
+					return;
+				}
+			}
+		}
+	}
+	
+	private Iterator<Record> reverse() {
+		synchronized(this) {
+			flush();
+			if(channel == null && !Files.exists(file)) {
+				return new ArrayList<Record>().iterator();
+			}
+			try {
+				open();
+				return new ReverseIterator(channel, channel.size());
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+	
+	private Iterator<Record> live(Predicate<String> names) {
+		var reverse = reverse();
+		var states = new HashMap<String, State>();
+		
+		return new Iterator<>() {
+			private Record next;
+
+			@Override
+			public boolean hasNext() {
+				while(next == null && reverse.hasNext()) {
+					var r = reverse.next();
+					if(!names.test(r.name()))
+						continue;
+					
+					var state = states.computeIfAbsent(r.name(), k -> new State());
+					if(state.ended)
+						continue;
+					
+					switch(r.type()) {
+					case REVERT:
+						state.skipping++;
+						break;
+					case BEGIN:
+						if(state.skipping > 0)
+							state.skipping--;
+						else
+							state.ended = true;
+						break;
+					case DELETE:
+						if(state.skipping == 0)
+							state.ended = true;
+						break;
+					default:
+						if(state.skipping == 0) {
+							next = r;
+						}
+						break;
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Record next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				try {
+					return next;
+				}
+				finally {
+					next = null;
+				}
+			}
+		};
+	}
+	
+	private void open() throws IOException {
+		if(channel != null)
+			return;
+		
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			var size = channel.size();
+			if(size == 0) {
+				var hdr = ByteBuffer.allocate(HEADER);
+				hdr.putInt(MAGIC);
+				hdr.putInt(VERSION);
+				hdr.flip();
+				while(hdr.hasRemaining())
+					channel.write(hdr, hdr.position());
+			}
+			else {
+				var hdr = read(channel, 0, HEADER);
+				if(hdr.getInt() != MAGIC || hdr.getInt() != VERSION) {
+					throw new IOException("`" + file + "` is not a journal log, or is an unsupported version.");
+				}
+				var end = validEnd(size);
+				if(end < size) {
+					/* Incomplete final block from an interrupted write */
+					channel.truncate(end);
+				}
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			channel = null;
+			throw e;
+		}
+	}
+
+	private long validEnd(long size) throws IOException {
+		long pos = HEADER;
+		long last = -1;
+		while(pos + 4 + TRAILER <= size) {
+			var len = read(channel, pos, 4).getInt();
+			if(len < 0 || pos + 4 + len + TRAILER > size)
+				break;
+			var trailer = read(channel, pos + 4 + len, TRAILER);
+			trailer.getInt();
+			if(trailer.getInt() != len || trailer.getInt() != BLOCK_MAGIC)
+				break;
+			last = pos;
+			pos += 4 + len + TRAILER;
+		}
+		
+		/* Only the final block can be torn, so only its content is checked */
+		if(last != -1) {
+			var len = read(channel, last, 4).getInt();
+			var body = read(channel, last + 4, len);
+			var crc = read(channel, last + 4 + len, 4).getInt();
+			if(crc(body) != crc) {
+				return last;
+			}
+		}
+		return pos;
+	}
+	
+	private static int crc(ByteBuffer body) {
+		var crc = new CRC32();
+		crc.update(body.duplicate());
+		return (int)crc.getValue();
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+		var buf = ByteBuffer.allocate(len);
+		while(buf.hasRemaining()) {
+			if(channel.read(buf, pos + buf.position()) == -1)
+				throw new IOException("Unexpected end of journal log.");
+		}
+		return buf.flip();
+	}
+
+	private static byte[] encode(List<Record> records) {
+		var names = new ArrayList<String>();
+		var index = new HashMap<String, Integer>();
+		for(var r : records) {
+			index.computeIfAbsent(r.name(), n -> {
+				names.add(n);
+				return names.size() - 1;
+			});
+		}
+		
+		var out = new ByteArrayOutputStream();
+		writeVarint(out, names.size());
+		for(var n : names) {
+			var b = n.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, b.length);
+			out.writeBytes(b);
+		}
+		
+		writeVarint(out, records.size());
+		var prev = NONE;
+		for(var r : records) {
+			out.write(r.type().ordinal());
+			writeVarint(out, index.get(r.name()));
+			if(r.type() == Type.LOG) {
+				var b = r.path().get().toString().getBytes(StandardCharsets.UTF_8);
+				var shared = 0;
+				var max = Math.min(prev.length, b.length);
+				while(shared < max && prev[shared] == b[shared])
+					shared++;
+				writeVarint(out, shared);
+				writeVarint(out, b.length - shared);
+				out.write(b, shared, b.length - shared);
+				prev = b;
+			}
+		}
+		return out.toByteArray();
+	}
+	
+	private static List<Record> decode(ByteBuffer in) {
+		var names = new String[readVarint(in)];
+		for(var i = 0 ; i < names.length; i++) {
+			var b = new byte[readVarint(in)];
+			in.get(b);
+			names[i] = new String(b, StandardCharsets.UTF_8);
+		}
+		
+		var count = readVarint(in);
+		var records = new ArrayList<Record>(count);
+		var prev = NONE;
+		for(var i = 0 ; i < count; i++) {
+			var type = Type.values()[in.get()];
+			var name = names[readVarint(in)];
+			if(type == Type.LOG) {
+				var shared = readVarint(in);
+				var b = new byte[shared + readVarint(in)];
+				System.arraycopy(prev, 0, b, 0, shared);
+				in.get(b, shared, b.length - shared);
+				records.add(new Record(type, name, Optional.of(Paths.get(new String(b, StandardCharsets.UTF_8)))));
+				prev = b;
+			}
+			else {
+				records.add(new Record(type, name, Optional.empty()));
+			}
+		}
+		return records;
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	private static int readVarint(ByteBuffer in) {
+		var value = 0;
+		for(var shift = 0 ; ; shift += 7) {
+			var b = in.get();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+	}
+	
+	private static <T> Stream<T> stream(Iterator<T> it) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	private final static class State {
+		private int skipping;
+		private boolean ended;
+	}
+	
+	/**
+	 * Reads the blocks of the log from a position backwards, decoding one at a time.
+	 */
+	private final static class ReverseIterator implements Iterator<Record> {
+		private final FileChannel channel;
+		private final ArrayDeque<Record> block = new ArrayDeque<>();
+		private long pos;
+		
+		private ReverseIterator(FileChannel channel, long pos) {
+			this.channel = channel;
+			this.pos = pos;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(block.isEmpty() && pos > HEADER) {
+				try {
+					var trailer = read(channel, pos - TRAILER, TRAILER);
+					var crc = trailer.getInt();
+					var len = trailer.getInt();
+					if(trailer.getInt() != BLOCK_MAGIC)
+						throw new IOException("Corrupt journal log block ending at " + pos);
+					var body = read(channel, pos - TRAILER - len, len);
+					if(crc(body) != crc)
+						throw new IOException("Corrupt journal log block ending at " + pos);
+					block.addAll(decode(body));
+					pos -= TRAILER + len + 4;
+				}
+				catch(IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+			return !block.isEmpty();
+		}
+
+		@Override
+		public Record next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return block.pollLast();
+		}
+	}
+}
@@ -25,12 +25,17 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.FilenameUtils;
 
+import uk.co.bithatch.ninstall.lib.JournalLog.Type;
 import uk.co.bithatch.ninstall.lib.StepContext.Journalled;
 import uk.co.bithatch.ninstall.lib.StepContext.JournalledCallable;
 
@@ -38,6 +43,9 @@ public class Journals implements Closeable {
 
     private final Map<String, Journal> journals = new HashMap<>();
 	private final SetupAppToolkit<?> toolkit;
+	private JournalLog log;
+	private boolean resuming;
+	private Consumer<JournalLog.Builder> configurator = b -> {};
     
     public Journals(SetupAppToolkit<?> toolkit) {
     	this.toolkit = toolkit;
@@ -98,7 +106,7 @@ public class Journals implements Closeable {
 		if(jnl == null) {
 			var stash = new Stash.Builder(toolkit.setupAppContext(), journalId).
 	        		build();
-			jnl = new Journal.Builder(toolkit.setupAppContext(), journalId).
+			jnl = new Journal.Builder(log(), journalId).
 					withStash(stash).
 					onDelete(j -> {
 						journals.remove(j.name());
@@ -109,8 +117,97 @@ public class Journals implements Closeable {
 		return jnl;
 	}
 
+	/**
+	 * Get whether the current run is resuming one that was interrupted. If so, paths
+	 * that were logged by the interrupted run may be reused if they are verified as
+	 * being complete.
+	 * 
+	 * @return resuming
+	 */
+	public boolean resuming() {
+		return resuming;
+	}
+
+	public void resuming(boolean resuming) {
+		this.resuming = resuming;
+	}
+
+	/**
+	 * Set how the journal log is configured, for example its sync and flush policy. This
+	 * must be called before the log is first opened.
+	 * 
+	 * @param configurator configurator
+	 */
+	public synchronized void configure(Consumer<JournalLog.Builder> configurator) {
+		if(log != null)
+			throw new IllegalStateException("The journal log is already open.");
+		this.configurator = configurator;
+	}
+
+	/**
+	 * Get the names of all journals with logged paths.
+	 * 
+	 * @return names
+	 */
+	public Set<String> names() {
+		return log().names();
+	}
+
+	/**
+	 * Write any buffered log entries of all journals.
+	 */
+	public synchronized void flush() {
+		if(log != null)
+			log.flush();
+	}
+
+	/**
+	 * Flush and close the journal log file without compacting it, so that it may be
+	 * moved (for example stashed when the installation directory is removed). It 
+	 * will be re-opened if needed.
+	 */
+	public synchronized void release() {
+		if(log != null)
+			log.release();
+	}
+
 	@Override
-	public void close() {
+	public synchronized void close() {
 		journals.values().forEach(j -> j.close());
+		if(log != null)
+			log.close();
+	}
+
+	private synchronized JournalLog log() {
+		if(log == null) {
+			var location = toolkit.setupAppContext().installLocation();
+			var bldr = new JournalLog.Builder(location.resolve(JournalLog.FILENAME));
+			configurator.accept(bldr);
+			log = bldr.build();
+			importLegacy(location);
+		}
+		return log;
+	}
+
+	/* Older versions kept a `.<name>.jnl` text file for each journal */
+	private void importLegacy(Path location) {
+		if(!Files.isDirectory(location))
+			return;
+		
+		IO.ioRun(() -> {
+			try(var stream = Files.newDirectoryStream(location, ".*.jnl")) {
+				for(var legacy : stream) {
+					var name = FilenameUtils.getBaseName(legacy.getFileName().toString().substring(1));
+					log.append(Type.BEGIN, name);
+					try(var lines = Files.lines(legacy)) {
+						/* Sorted, so parents are logged before their children */
+						lines.filter(l -> !l.isEmpty()).distinct().sorted().forEach(l -> 
+							log.append(Type.LOG, name, Optional.of(Paths.get(l))));
+					}
+					log.flush();
+					Files.delete(legacy);
+				}
+			}
+		});
 	}
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Entry point of a multi-call executable, one native image containing several applications, 
+ * such as the installer, uninstaller and updater. Like <code>busybox</code>, the application
+ * to run is chosen by the name the executable was invoked as, usually a hard link to it, or
+ * otherwise by the first argument.
+ * <p>
+ * The applications are listed in the {@link #RESOURCE} resource, mapping each name to the
+ * class whose <code>main</code> method runs it.
+ */
+public final class MultiCall {
+	
+	public final static String RESOURCE = "ninstall-multicall.properties";
+	
+	/**
+	 * Path of the reflection configuration that lets <code>native-image</code> find the 
+	 * <code>main</code> method of each application.
+	 */
+	public final static String REFLECTION_CONFIG = "META-INF/native-image/ninstall-multicall/reflect-config.json";
+
+	public static void main(String[] args) throws Throwable {
+		var apps = apps();
+		
+		var name = invokedName();
+		if(name.isPresent() && apps.containsKey(name.get())) {
+			run(apps.getProperty(name.get()), args);
+		}
+		else if(args.length > 0 && apps.containsKey(args[0])) {
+			run(apps.getProperty(args[0]), Arrays.copyOfRange(args, 1, args.length));
+		}
+		else {
+			System.err.println(String.format("Usage: %s <%s> [<args>]", name.orElse("setup"), 
+					apps.stringPropertyNames().stream().sorted().collect(Collectors.joining("|"))));
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Create the content of the reflection configuration for the given main classes.
+	 * 
+	 * @param mainClasses main classes
+	 * @return configuration
+	 */
+	public static String reflectionConfig(Iterable<String> mainClasses) {
+		var str = new StringBuilder("[\n");
+		for(var clazz : mainClasses) {
+			if(str.length() > 2)
+				str.append(",\n");
+			str.append(String.format("  { \"name\": \"%s\", \"methods\": [ { \"name\": \"main\", \"parameterTypes\": [ \"java.lang.String[]\" ] } ] }", clazz));
+		}
+		return str.append("\n]\n").toString();
+	}
+	
+	private static Properties apps() {
+		var apps = new Properties();
+		var in = MultiCall.class.getResourceAsStream("/" + RESOURCE);
+		if(in == null)
+			throw new IllegalStateException("No applications in this executable.");
+		try(var rdr = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			apps.load(rdr);
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return apps;
+	}
+	
+	private static Optional<String> invokedName() {
+		/* For hard links this is the path as invoked, symbolic links are resolved to the target */
+		return ProcessHandle.current().info().command().map(cmd -> {
+			var name = Paths.get(cmd).getFileName().toString();
+			return name.toLowerCase().endsWith(".exe") ? name.substring(0, name.length() - 4) : name;
+		});
+	}
+	
+	private static void run(String mainClass, String[] args) throws Throwable {
+		try {
+			Class.forName(mainClass).getMethod("main", String[].class).invoke(null, (Object)args);
+		}
+		catch(InvocationTargetException ite) {
+			throw ite.getCause();
+		}
+	}
+}
@@ -107,9 +107,151 @@ public interface Progress {
         
     }
     
+    public final static class SynchronizedProgress implements Progress {
+    	
+    	private final Progress delegate;
+    	private final Object lock;
+    	private Progress parent;
+
+		private SynchronizedProgress(Progress delegate, Object lock) {
+			this.delegate = delegate;
+			this.lock = lock;
+		}
+
+		@Override
+		public void progressed(double amount) {
+			synchronized (lock) {
+				delegate.progressed(amount);
+			}
+		}
+
+		@Override
+		public void error(String text, Throwable exception, Object... args) {
+			synchronized (lock) {
+				delegate.error(text, exception, args);
+			}
+		}
+
+		@Override
+		public void warning(String text, Object... args) {
+			synchronized (lock) {
+				delegate.warning(text, args);
+			}
+		}
+
+		@Override
+		public void info(String text, Object... args) {
+			synchronized (lock) {
+				delegate.info(text, args);
+			}
+		}
+
+		@Override
+		public void alert(String text, Object... args) {
+			synchronized (lock) {
+				delegate.alert(text, args);
+			}
+		}
+
+		@Override
+		public void command(String text, Object... args) {
+			synchronized (lock) {
+				delegate.command(text, args);
+			}
+		}
+
+		@Override
+		public void total(double total) {
+			synchronized (lock) {
+				delegate.total(total);
+			}
+		}
+
+		@Override
+		public void weight(float weight) {
+			synchronized (lock) {
+				delegate.weight(weight);
+			}
+		}
+
+		@Override
+		public float weight() {
+			synchronized (lock) {
+				return delegate.weight();
+			}
+		}
+
+		@Override
+		public Progress parent() {
+			synchronized (lock) {
+				if(parent == null) {
+					parent = new SynchronizedProgress(delegate.parent(), lock);
+				}
+				return parent;
+			}
+		}
+
+		@Override
+		public void adjustTotal(double len) {
+			synchronized (lock) {
+				delegate.adjustTotal(len);
+			}
+		}
+
+		@Override
+		public void complete() {
+			synchronized (lock) {
+				delegate.complete();
+			}
+		}
+
+		@Override
+		public void step(double amount) {
+			synchronized (lock) {
+				delegate.step(amount);
+			}
+		}
+
+		@Override
+		public void reset() {
+			synchronized (lock) {
+				delegate.reset();
+			}
+		}
+
+		@Override
+		public double progressed() {
+			synchronized (lock) {
+				return delegate.progressed();
+			}
+		}
+
+		@Override
+		public double total() {
+			synchronized (lock) {
+				return delegate.total();
+			}
+		}
+    }
+    
     public static Progress defaultProgress() {
         return new DefaultProgress();
     }
+    
+    /**
+     * Wrap a progress so it may be safely updated from many threads. The parent (and
+     * its parent and so on) share the same lock, as updating a child progress will
+     * usually update its parent too.
+     * 
+     * @param progress progress to wrap
+     * @return thread safe progress
+     */
+    public static Progress synchronizedProgress(Progress progress) {
+    	if(progress instanceof SynchronizedProgress) {
+    		return progress;
+    	}
+    	return new SynchronizedProgress(progress, new Object());
+    }
 
     default void error(String text, Object... args) {
         error(text, null, args);
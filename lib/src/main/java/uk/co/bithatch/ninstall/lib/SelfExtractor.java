@@ -23,25 +23,52 @@ package uk.co.bithatch.ninstall.lib;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class SelfExtractor {
 
+	public static final String ARCHIVE = "data.zip";
+	/**
+	 * Environment variable telling the installer where the payload archive is, when it
+	 * should install straight from it rather than from extracted files.
+	 */
+	public static final String ARCHIVE_ENV = "NINSTALL_ARCHIVE";
 	public static final String EXEC = "exec";
 	public static final String NAME = "name";
     public static final String VERSION = "version";
+    
+	/* Header ID of the extra field holding the markers, as Archives.MARKERS, which can't be
+	 * used as only this class is compiled into the native image */
+	private static final int MARKERS = 0x694e;
 
 	static void printHelp(String err, String name) {
 		System.err.println("Self Extractor.");
@@ -49,6 +76,7 @@ public class SelfExtractor {
 			System.err.println(err);
 		System.err.println();
 		System.err.println("Options:-");
+		System.err.println("    --extract-all   Extract all files, even if the installer can install from the archive.");
 		System.err.println("    --no-cleanup    Do not remove temporary files when complete.");
 		System.err.println("    --no-exec       Do not execute installer script.");
 		System.err.println("    --quiet         No output.");
@@ -67,6 +95,7 @@ public class SelfExtractor {
 
 		/* Config */
 		boolean cleanup = true;
+		boolean extractAll = false;
 		boolean exec = true;
 		boolean quiet = false;
 		boolean verbose = false;
@@ -77,6 +106,8 @@ public class SelfExtractor {
 			for (int i = 0; i < args.length; i++) {
 				if (args[i].equals("--no-cleanup")) {
 					cleanup = false;
+				} else if (args[i].equals("--extract-all")) {
+					extractAll = true;
 				} else if (args[i].equals("--no-exec")) {
 					exec = false;
 				} else if (args[i].equals("--verbose")) {
@@ -107,128 +138,133 @@ public class SelfExtractor {
                 System.out.println(MessageFormat.format("Extracting {0} {1}", name, version));
 		}
 		int ret = 0;
+		Path archive = null;
 		try {
 			Files.createDirectories(destDir);
-			int e = 0;
-			try (var zis = new ZipInputStream(SelfExtractor.class.getResourceAsStream("/data.zip"))) {
-				var zipEntry = zis.getNextEntry();
-				while (zipEntry != null) {
-					if (!quiet) {
-						if (verbose)
-							System.out.println("    " + zipEntry.getName());
-						else {
-							switch (e) {
-							case 0:
-								System.out.print("|");
-								break;
-							case 1:
-								System.out.print("/");
-								break;
-							case 2:
-								System.out.print("-");
-								break;
-							case 3:
-								System.out.print("\\");
-								break;
-							case 4:
-								System.out.print("|");
-								break;
-							case 5:
-								System.out.print("/");
-								break;
-							case 6:
-								System.out.print("-");
-								break;
-							case 7:
-								System.out.print("\\");
-								break;
+			
+			/* If the installer is going to be run, it can install straight from the archive,
+			 * so only the installer itself needs extracting */
+			var startupScript = props.getProperty(EXEC);
+			var installerOnly = exec && startupScript != null && !extractAll;
+			/* Kept apart from the extracted files, so it can never be mistaken for one */
+			archive = Files.createTempFile("frk", ".zip");
+			try(var in = SelfExtractor.class.getResourceAsStream("/" + ARCHIVE)) {
+				Files.copy(in, archive, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			var spinner = new AtomicInteger();
+			var listEntries = !quiet && verbose;
+			var spin = !quiet && !verbose;
+			Consumer<ZipEntry> progress = zipEntry -> {
+				if (listEntries)
+					System.out.println("    " + zipEntry.getName());
+				else if (spin)
+					System.out.print(new String(new char[] { "|/-\\".charAt(spinner.getAndIncrement() % 4), (char)8 }));
+			};
+			
+			ZipFile zip = null;
+			try {
+				zip = new ZipFile(archive.toFile());
+			}
+			catch(ZipException ze) {
+				if(verbose)
+					System.out.println("Cannot read archive directory, extracting as a stream. " + ze.getMessage());
+			}
+			
+			if(zip == null) {
+				try (var zis = new ZipInputStream(Files.newInputStream(archive))) {
+					var zipEntry = zis.getNextEntry();
+					while (zipEntry != null) {
+						if(!installerOnly) {
+							progress.accept(zipEntry);
+							extract(destDir, zipEntry, zis, true);
+						}
+						else if(zipEntry.getName().equals(startupScript)) {
+							progress.accept(zipEntry);
+							var linked = hardLink(zipEntry);
+							if(linked == null) {
+								extract(destDir, zipEntry, zis, true);
+							}
+							else {
+								/* Linked to an earlier entry that was skipped, so read again for it */
+								try (var lzis = new ZipInputStream(Files.newInputStream(archive))) {
+									var lzipEntry = lzis.getNextEntry();
+									while (lzipEntry != null && !lzipEntry.getName().equals(linked)) {
+										lzipEntry = lzis.getNextEntry();
+									}
+									if (lzipEntry == null)
+										throw new IOException("No entry " + linked + " for hard link " + startupScript);
+									extract(destDir, asFile(zipEntry, lzipEntry), lzis, true);
+								}
 							}
-							System.out.print((char)8);
-							e++;
-							if (e > 7)
-								e = 0;
 						}
+						zipEntry = zis.getNextEntry();
 					}
-
-					Boolean read = false;
-					Boolean write = false;
-					Boolean execute = false;
-					String link = null;
-					var extra = zipEntry.getExtra() == null ? "" : new String(zipEntry.getExtra(), "UTF-8");
-					char[] extrac = extra.toCharArray();
-					for (int i = 0; i < extrac.length; i++) {
-						char c = extrac[i];
-						switch (c) {
-						case 'r':
-							read = false;
-							break;
-						case 'R':
-							read = true;
-							break;
-						case 'w':
-							write = false;
-							break;
-						case 'W':
-							write = true;
-							break;
-						case 'x':
-							execute = false;
-							break;
-						case 'X':
-							execute = true;
-							break;
-						case 'L':
-							var slen = Character.toString(extrac[++i]) + Character.toString(extrac[++i])
-									+ Character.toString(extrac[++i]) + Character.toString(extrac[++i]);
-							int len = Integer.valueOf(slen);
-							var linkpath = new StringBuffer();
-							for (int j = 0; j < len; j++) {
-								linkpath.append(extrac[++i]);
+					zis.closeEntry();
+				}
+			}
+			else {
+				/* Inflate files concurrently straight from the archive, then make hard
+				 * links once the files they link to exist. Last, create directories and 
+				 * apply their permissions, which might prevent writing */
+				try(var zf = zip) {
+					var hardLinks = new ConcurrentLinkedQueue<ZipEntry>();
+					var errors = new ConcurrentLinkedQueue<IOException>();
+					var files = installerOnly 
+							? Stream.ofNullable(zf.getEntry(startupScript)) 
+							: zf.stream().filter(z -> !z.isDirectory());
+					var workers = workers();
+					try {
+						files.forEach(fileEntry -> workers.execute(() -> {
+							progress.accept(fileEntry);
+							try {
+								/* Only the installer is extracted, so it can't be linked to the 
+								 * entry it shares content with */
+								ZipEntry zipEntry = fileEntry;
+								ZipEntry content = fileEntry;
+								var linked = installerOnly ? hardLink(fileEntry) : null;
+								if(linked != null) {
+									content = zf.getEntry(linked);
+									if(content == null)
+										throw new IOException("No entry " + linked + " for hard link " + startupScript);
+									zipEntry = asFile(fileEntry, content);
+								}
+								
+								try(var in = zf.getInputStream(content)) {
+									if(!extract(destDir, zipEntry, in, false))
+										hardLinks.add(zipEntry);
+								}
+							} catch (IOException ioe) {
+								errors.add(ioe);
 							}
-							link = linkpath.toString();
-							break;
-						}
+						}));
 					}
-
-					var newFile = newFile(destDir, zipEntry);
-					if (link != null) {
-						Files.createSymbolicLink(newFile, Paths.get(link));
-					} else if (zipEntry.isDirectory()) {
-						if (!Files.isDirectory(newFile)) {
-							Files.createDirectories(newFile);
-						}
-					} else {
-						// fix for Windows-created archives
-						var parent = newFile.getParent();
-						if (!Files.isDirectory(parent)) {
-							Files.createDirectories(parent);
-						}
-
-						// write file content
-						try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(newFile))) {
-							zis.transferTo(fos);
-						}
+					finally {
+						workers.shutdown();
+						workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 					}
-
-					if (read != null) {
-						newFile.toFile().setReadable(read);
+					var first = errors.poll();
+					if(first != null) {
+						errors.forEach(first::addSuppressed);
+						throw first;
 					}
-
-					if (write != null) {
-						newFile.toFile().setWritable(write);
+					for(var zipEntry : hardLinks) {
+						extract(destDir, zipEntry, null, true);
 					}
-
-					if (execute != null) {
-						newFile.toFile().setExecutable(execute);
+					if(!installerOnly) {
+						for(var zipEntry : zf.stream().filter(ZipEntry::isDirectory).toList()) {
+							progress.accept(zipEntry);
+							extract(destDir, zipEntry, null, true);
+						}
 					}
-
-					zipEntry = zis.getNextEntry();
 				}
-				zis.closeEntry();
+			}
+			
+			if(!installerOnly) {
+				Files.delete(archive);
 			}
 
 			if (exec) {
-				var startupScript = props.getProperty(EXEC);
 				if (startupScript != null) {
 					installerArgs.add(0, destDir.resolve(startupScript).toAbsolutePath().toString());
 					if (!quiet) {
@@ -242,6 +278,8 @@ public class SelfExtractor {
 					pb.redirectInput(Redirect.INHERIT);
 					pb.redirectOutput(Redirect.INHERIT);
 					pb.directory(destDir.toFile());
+					if(installerOnly)
+						pb.environment().put(ARCHIVE_ENV, archive.toAbsolutePath().toString());
 					Process p = pb.start();
 					ret = p.waitFor();
 				}
@@ -253,22 +291,209 @@ public class SelfExtractor {
 			if (cleanup) {
 				if (!quiet)
 					System.out.println("Cleaning up " + destDir);
-				try (Stream<Path> walk = Files.walk(destDir)) {
-					walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+				var failed = new ConcurrentLinkedQueue<Path>();
+				ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> delete(destDir, failed)));
+				if(archive != null) {
+					try {
+						Files.deleteIfExists(archive);
+					}
+					catch(IOException ioe) {
+						failed.add(archive);
+					}
+				}
+				if (!failed.isEmpty() && !quiet) {
+					System.out.println(MessageFormat.format("Failed to remove {0} temporary file(s).", failed.size()));
+					if(verbose) {
+						failed.forEach(f -> System.out.println("    " + f));
+					}
 				}
 			}
 		}
 		System.exit(ret);
 	}
 
-	static Path newFile(Path destinationDir, ZipEntry zipEntry) throws IOException {
-		var destFile = destinationDir.resolve(zipEntry.getName());
+	/* A bounded pool of writers, as IO.workers(). When all are busy and the queue is full,
+	 * the reading thread writes the next file itself */
+	static ExecutorService workers() {
+		var threads = Runtime.getRuntime().availableProcessors();
+		var counter = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(threads * 4), 
+				r -> {
+					var thread = new Thread(r, "SelfExtractor-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/* Get the markers from the tagged extra field they are kept in, or an empty string if
+	 * there are none */
+	static String markers(ZipEntry zipEntry) {
+		var extra = zipEntry.getExtra();
+		if(extra != null) {
+			var buf = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+			while(buf.remaining() >= 4) {
+				var id = buf.getShort() & 0xffff;
+				var len = buf.getShort() & 0xffff;
+				if(len > buf.remaining())
+					break;
+				if(id == MARKERS)
+					return new String(extra, buf.position(), len, StandardCharsets.UTF_8);
+				buf.position(buf.position() + len);
+			}
+		}
+		return "";
+	}
+
+	/* Get the entry a hard link entry links to, or null if it is not a hard link */
+	static String hardLink(ZipEntry zipEntry) throws IOException {
+		var extra = markers(zipEntry);
+		for (int i = 0; i < extra.length(); i++) {
+			char c = extra.charAt(i);
+			if (c == 'L' || c == 'H') {
+				int len = Integer.valueOf(extra.substring(i + 1, i + 5));
+				if (c == 'H')
+					return extra.substring(i + 5, i + 5 + len);
+				i += 4 + len;
+			}
+		}
+		return null;
+	}
+
+	/* A hard link entry to be extracted as a plain file, with the content and permissions of 
+	 * the entry it links to */
+	static ZipEntry asFile(ZipEntry zipEntry, ZipEntry linked) {
+		var file = new ZipEntry(zipEntry.getName());
+		file.setExtra(linked.getExtra());
+		return file;
+	}
+
+	/* Returns false without extracting anything if the entry is a hard link and they are
+	 * not yet being made */
+	static boolean extract(Path destDir, ZipEntry zipEntry, InputStream zis, boolean hardLinks) throws IOException {
+		Boolean read = false;
+		Boolean write = false;
+		Boolean execute = false;
+		String link = null;
+		String hardLink = null;
+		char[] extrac = markers(zipEntry).toCharArray();
+		for (int i = 0; i < extrac.length; i++) {
+			char c = extrac[i];
+			switch (c) {
+			case 'r':
+				read = false;
+				break;
+			case 'R':
+				read = true;
+				break;
+			case 'w':
+				write = false;
+				break;
+			case 'W':
+				write = true;
+				break;
+			case 'x':
+				execute = false;
+				break;
+			case 'X':
+				execute = true;
+				break;
+			case 'L':
+			case 'H':
+				var slen = Character.toString(extrac[++i]) + Character.toString(extrac[++i])
+						+ Character.toString(extrac[++i]) + Character.toString(extrac[++i]);
+				int len = Integer.valueOf(slen);
+				var linkpath = new StringBuffer();
+				for (int j = 0; j < len; j++) {
+					linkpath.append(extrac[++i]);
+				}
+				if (c == 'L')
+					link = linkpath.toString();
+				else
+					hardLink = linkpath.toString();
+				break;
+			}
+		}
+
+		if (hardLink != null && !hardLinks) {
+			return false;
+		}
+
+		var newFile = newFile(destDir, zipEntry.getName());
+		if (link != null) {
+			Files.createDirectories(newFile.getParent());
+			Files.createSymbolicLink(newFile, Paths.get(link));
+		} else if (hardLink != null) {
+			Files.createDirectories(newFile.getParent());
+			Files.deleteIfExists(newFile);
+			Files.createLink(newFile, newFile(destDir, hardLink));
+		} else if (zipEntry.isDirectory()) {
+			if (!Files.isDirectory(newFile)) {
+				Files.createDirectories(newFile);
+			}
+		} else {
+			// fix for Windows-created archives
+			var parent = newFile.getParent();
+			if (!Files.isDirectory(parent)) {
+				Files.createDirectories(parent);
+			}
+
+			// write file content
+			try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(newFile))) {
+				zis.transferTo(fos);
+			}
+		}
+
+		if (read != null) {
+			newFile.toFile().setReadable(read);
+		}
+
+		if (write != null) {
+			newFile.toFile().setWritable(write);
+		}
+
+		if (execute != null) {
+			newFile.toFile().setExecutable(execute);
+		}
+		return true;
+	}
+
+	/* Deletes sub-directories in parallel. Tasks are lambdas rather than classes, as 
+	 * only this class is compiled into the native image */
+	static void delete(Path path, Collection<Path> failed) {
+		try {
+			if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				var subdirs = new ArrayList<ForkJoinTask<?>>();
+				try (var stream = Files.newDirectoryStream(path)) {
+					for (var child : stream) {
+						if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+							subdirs.add(ForkJoinTask.adapt(() -> delete(child, failed)));
+						} else {
+							try {
+								Files.deleteIfExists(child);
+							} catch (IOException ioe) {
+								failed.add(child);
+							}
+						}
+					}
+				}
+				ForkJoinTask.invokeAll(subdirs);
+			}
+			Files.deleteIfExists(path);
+		} catch (IOException ioe) {
+			failed.add(path);
+		}
+	}
+
+	static Path newFile(Path destinationDir, String name) throws IOException {
+		var destFile = destinationDir.resolve(name);
 
 		var destDirPath = destinationDir.normalize().toString();
 		var destFilePath = destFile.normalize().toString();
 
 		if (!destFilePath.startsWith(destDirPath + File.separator)) {
-			throw new IOException("Entry is outside of the target dir: " + zipEntry.getName());
+			throw new IOException("Entry is outside of the target dir: " + name);
 		}
 
 		return destFile;
@@ -22,6 +22,7 @@ package uk.co.bithatch.ninstall.lib;
 
 import java.io.UnsupportedEncodingException;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -30,6 +31,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import com.sshtools.liftlib.Elevator;
 import com.sshtools.liftlib.IElevator;
@@ -52,6 +54,7 @@ public abstract class SetupApp<CTX extends SetupAppContext<?, ?>, TK extends Set
         private Optional<DisplayMode> displayMode = Optional.empty();
         private Optional<Mode> mode = Optional.empty();
         private Optional<IElevator> elevator = Optional.empty();
+        private List<Consumer<JournalLog.Builder>> journalLog = new ArrayList<>();
 
         public BLDR withElevator(IElevator elevator) {
             this.elevator = Optional.of(elevator);
@@ -90,6 +93,51 @@ public abstract class SetupApp<CTX extends SetupAppContext<?, ?>, TK extends Set
             }
         }
         
+        public BLDR withJournalSync() {
+            return withJournalSync(true);
+        }
+
+        /**
+         * Set whether every write of the journal log is also forced to the storage device.
+         * 
+         * @param sync sync
+         * @return this for chaining
+         * @see JournalLog.Builder#withSync(boolean)
+         */
+        public BLDR withJournalSync(boolean sync) {
+            this.journalLog.add(b -> b.withSync(sync));
+            return (BLDR)this;
+        }
+
+        /**
+         * Set when buffered journal log records are written.
+         * 
+         * @param flushEntries maximum number of pending records
+         * @param flushInterval maximum time between writes
+         * @return this for chaining
+         * @see JournalLog.Builder#withFlushPolicy(int, Duration)
+         */
+        public BLDR withJournalFlushPolicy(int flushEntries, Duration flushInterval) {
+            if(flushEntries < 1)
+                throw new IllegalArgumentException("Must flush at least every record.");
+            this.journalLog.add(b -> b.withFlushPolicy(flushEntries, flushInterval));
+            return (BLDR)this;
+        }
+
+        /**
+         * Set the size in bytes the journal log must reach before it is compacted when closed.
+         * 
+         * @param compactThreshold size in bytes
+         * @return this for chaining
+         * @see JournalLog.Builder#withCompactThreshold(long)
+         */
+        public BLDR withJournalCompactThreshold(long compactThreshold) {
+            if(compactThreshold < 0)
+                throw new IllegalArgumentException("Compact threshold may not be negative.");
+            this.journalLog.add(b -> b.withCompactThreshold(compactThreshold));
+            return (BLDR)this;
+        }
+        
         public BLDR withOptions(SetupAppOptions... options) {
             return withOptions(Arrays.asList(options));
         }
@@ -119,6 +167,7 @@ public abstract class SetupApp<CTX extends SetupAppContext<?, ?>, TK extends Set
     private final TemplateProcessor processor;
 	private final Optional<Mode> defaultMode;
     private final Optional<IElevator> elevator;
+    private final List<Consumer<JournalLog.Builder>> journalLog;
     
     private  CTX context;
 
@@ -130,6 +179,7 @@ public abstract class SetupApp<CTX extends SetupAppContext<?, ?>, TK extends Set
         this.options = Collections.unmodifiableList(new ArrayList<>(bldr.options));
         this.appId = bldr.appId.orElseThrow(() -> new IllegalStateException("An application ID must be set. This should ideal never change throughout the life of your application. You can use withAppId() to specifiy and exact ID, or use the recommended withHumanReadableAppId() to generate a UUID from a phrase."));
         this.elevator = bldr.elevator;
+        this.journalLog = Collections.unmodifiableList(new ArrayList<>(bldr.journalLog));
         processor = new TemplateProcessor.Builder().
                 build();
     }
@@ -150,6 +200,7 @@ public abstract class SetupApp<CTX extends SetupAppContext<?, ?>, TK extends Set
         var arglist = Arrays.asList(args);
         var displayMode = calcDisplayMode(arglist).or(() -> defaultDisplayMode);
         var toolkit = getBestSetupAppToolkit(displayMode);
+        toolkit.journals().configure(b -> journalLog.forEach(c -> c.accept(b)));
         var mode = arglist.isEmpty() || !arglist.contains("--unattended")? this.defaultMode.orElse(Mode.INTERACTIVE) : Mode.UNATTENDED; 
         
         var opts = options.stream().filter(o -> o.root().isAssignableFrom(toolkit.getClass())).findFirst().orElse(toolkit.defaultOptions());
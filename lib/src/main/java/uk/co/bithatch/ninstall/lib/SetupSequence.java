@@ -20,14 +20,36 @@
  */
 package uk.co.bithatch.ninstall.lib;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ResourceBundle;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public final class SetupSequence<STEP extends StepContext<?>> {
+	
+	/**
+	 * Prefix of the journal of the steps completed by the current run, which is followed
+	 * by the kind of setup application. If this has any paths when a run starts, the previous
+	 * run of the same kind was interrupted. The paths are step identifiers, not files.
+	 */
+	public static final String SEQUENCE = "sequence";
+	
+	/**
+	 * Get whether a journal is one that records the steps of a run rather than files.
+	 * 
+	 * @param name journal name
+	 * @return sequence journal
+	 */
+	public static boolean isSequence(String name) {
+		return name.equals(SEQUENCE) || name.startsWith(SEQUENCE + "-");
+	}
+	
+	private static final Path STARTED = Paths.get("started");
     
 	private final Supplier<STEP> ctx;
     private final SetupAppToolkit<?> toolkit;
@@ -95,12 +117,46 @@ public final class SetupSequence<STEP extends StepContext<?>> {
                 throw new RuntimeException(t);
             } 
             
-            for (var step : steps) {
+            /* Steps that an interrupted run completed are not applied again */
+            /* Installer, uninstaller and updater share the journal log, so each keeps its own */
+            var sequence = toolkit.journals().obtainJournal(SEQUENCE + "-" + 
+            		toolkit.setupAppContext().setupApp().getClass().getSimpleName().toLowerCase());
+            var completed = sequence.paths().collect(Collectors.toSet());
+            var resumeFrom = 0;
+            while(resumeFrom < steps.size() && completed.contains(stepId(resumeFrom, steps.get(resumeFrom)))) {
+            	resumeFrom++;
+            }
+            toolkit.journals().resuming(!completed.isEmpty());
+            sequence.log(STARTED);
+            if(resumeFrom > 0) {
+            	progress.info("Resuming interrupted setup, skipping {0} completed step(s).", resumeFrom);
+            }
+            
+            /* What completed steps stashed is only still known if the stash outlived the interrupted run */
+            var recoverable = sequence.stash().persistent();
+            
+            var resumed = new ArrayList<Step<STEP>>();
+            for (var i = 0 ; i < steps.size(); i++) {
+            	var step = steps.get(i);
             	var ctx = ctxs.get(step);
+            	if(i < resumeFrom) {
+            		sequence.log(stepId(i, step));
+            		if(recoverable)
+            			undoable.add(0, step);
+            		else
+            			resumed.add(0, step);
+                    if(autostep.contains(step)) {
+                    	progress.step(ctx.progress().weight());
+                    }
+            		continue;
+            	}
+            	
                 try {
                 	progress.info(ResourceBundle.getBundle(step.getClass().getName()).getString("title"));
             		
                     step.apply(ctx);
+                    sequence.log(stepId(i, step));
+                    toolkit.journals().flush();
                     if(interrupted) {
                         throw new InterruptedException();
                     }
@@ -127,12 +183,15 @@ public final class SetupSequence<STEP extends StepContext<?>> {
                     if(!undoErrs.isEmpty()) {
                         progress.error("Installer tried to roll-back, but there were {0} error(s). The installation is likely now damaged.", undoErrs.size());
                     }
+                    sequence.delete();
                     if (t instanceof RuntimeException) {
                         throw (RuntimeException) t;
                     }
                     throw new RuntimeException(t);
                 }
             }
+            /* Steps completed by an interrupted run still need to commit, but without a persistent stash cannot be rolled back */
+            undoable.addAll(resumed);
             undoable.forEach(step -> {
                 try {
                 	var ctx = ctxs.get(step);
@@ -147,11 +206,17 @@ public final class SetupSequence<STEP extends StepContext<?>> {
             if(!commitErrs.isEmpty()) {
                 progress.error("Installer tried to commit, but there were {0} error(s). The installation probably isn't damaged, but there may be temporary files remaining.", commitErrs.size());
             }
+            sequence.delete();
             toolkit.result(InstallResult.INSTALLED);
         }
         finally {
+        	toolkit.journals().resuming(false);
         	toolkit.journals().close();
             thread = null;
         }
     }
+    
+    private static Path stepId(int index, Step<?> step) {
+    	return Paths.get(String.format("%d-%s", index, step.getClass().getName()));
+    }
 }
@@ -24,11 +24,13 @@ import static uk.co.bithatch.ninstall.lib.IO.checkDir;
 import static uk.co.bithatch.ninstall.lib.IO.checkParentDir;
 import static uk.co.bithatch.ninstall.lib.IO.ioRun;
 
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -36,44 +38,122 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
+/**
+ * Paths moved aside (or created) by a step, so they may be put back if the step is 
+ * rolled back. 
+ * <p>
+ * When the installation location is known, the stash is kept in a hidden sibling 
+ * directory of it, named after it, so an interrupted run's stash is found again by the
+ * next run. Its index records every stashed path, every created path, and every other
+ * directory stashed paths were moved to, and is reloaded whenever a stash of the 
+ * same name is built. Otherwise, the stash is kept in the temporary directory and
+ * is lost with the process, see {@link #persistent()}.
+ */
 public final class Stash implements Closeable {
     public final static ResourceBundle RESOURCES = ResourceBundle.getBundle(Stash.class.getName());
+    
+    private final static int COMPACT_THRESHOLD = 1024;
+    private final static String STASH_PREFIX = ".ninstall-stash-";
+    private final static String CREATED = "+";
+    private final static String ROOT = "@";
 
     public final static class Builder {
         private final SetupAppContext<?, ?> context;
         private final String name;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
 
         public Builder(SetupAppContext<?, ?>  context, String name) {
             this.context = context;
             this.name = name;
         }
         
+        /**
+         * Set the maximum number of paths restored (or deleted) at once when the
+         * stash is restored.
+         * 
+         * @param parallelism parallelism
+         * @return this for chaining
+         */
+        public Builder withParallelism(int parallelism) {
+        	if(parallelism < 1)
+        		throw new IllegalArgumentException("Parallelism must be at least 1.");
+        	this.parallelism = parallelism;
+        	return this;
+        }
+        
         public Stash build() {
             return new Stash(this);
         }
 
     }
 
+    private final String name;
+    private final int parallelism;
+    private final boolean persistent;
     private final Path root;
+    private final Path tmpRoot;
     private final Path index;
-    private final List<Path> created = new ArrayList<>();
+    private final Map<Object, Path> roots = new HashMap<>();
+    private final List<Path> created = Collections.synchronizedList(new ArrayList<>());
+    private final List<Runnable> onRestore = Collections.synchronizedList(new ArrayList<>());
+    private final Map<UUID, Item> items = new LinkedHashMap<>();
+    
+    private BufferedWriter writer;
+    private int tombstones;
 
-    private record Item(UUID uuid, Path path) {
+    private record Item(UUID uuid, Path path, Path stashed) {
     }
 
     private Stash(Builder bldr) {
-        root = bldr.context.tmp().resolve(bldr.name);
+    	name = bldr.name;
+    	parallelism = bldr.parallelism;
+    	tmpRoot = bldr.context.tmp().resolve(bldr.name);
+    	
+    	var home = home(bldr.context);
+    	persistent = home.isPresent();
+        root = home.map(h -> h.resolve(bldr.name)).orElse(tmpRoot);
         index = root.resolve("index.log");
+        
+        load();
+    }
+    
+    /**
+     * Get whether this stash is kept at a stable location for the installation, so
+     * it survives the process and a resumed run may still restore it.
+     * 
+     * @return persistent
+     */
+    public boolean persistent() {
+    	return persistent;
     }
 
+	/**
+	 * Add a task to run when this stash is restored, in addition to restoring the
+	 * files. Tasks are run in the reverse order they are added.
+	 * 
+	 * @param task task
+	 */
+	public void onRestore(Runnable task) {
+		onRestore.add(task);
+	}
+
 	public void created(Path path) {
 		if(!Files.exists(path)) {
-			created.add(path);
+			addCreated(path);
 		}
 	}
     
@@ -82,7 +162,7 @@ public final class Stash implements Closeable {
     		stash(path);
     	}
     	else {
-    		this.created.add(path);
+    		addCreated(path);
     	}
     }
 
@@ -96,16 +176,29 @@ public final class Stash implements Closeable {
                 throw new NoSuchFileException("Can only stash paths that exist. `" + path + "` does not.");
             checkDir(root);
             
-            var absPath = path.toAbsolutePath().toString();
-            var uuid = UUID.nameUUIDFromBytes(absPath.getBytes("UTF-8"));
-            var stashed = root.resolve(uuid.toString());
-            if(Files.exists(stashed))
-                return;
+            var absPath = path.toAbsolutePath();
+            var uuid = UUID.nameUUIDFromBytes(absPath.toString().getBytes("UTF-8"));
+            Path stashed;
+            synchronized(this) {
+            	if(items.containsKey(uuid))
+            		return;
+            	stashed = rootFor(absPath).resolve(uuid.toString());
+            	
+            	/* Indexed before it is moved, so it is not lost if interrupted part way */
+            	items.put(uuid, new Item(uuid, absPath, stashed));
+            	append(uuid + "\t" + stashed + "\t" + absPath);
+            }
             
-            IO.moveAcrossStores(recursive, path, stashed);
-
-            try (var out = new PrintWriter(Files.newBufferedWriter(index, StandardOpenOption.CREATE, StandardOpenOption.APPEND), true)) {
-                out.println(String.format("%s %s", uuid, absPath));
+            try {
+            	IO.moveAcrossStores(recursive, path, stashed);
+            }
+            catch(RuntimeException re) {
+            	synchronized(this) {
+            		items.remove(uuid);
+            		append("-" + uuid);
+            		tombstones++;
+            	}
+            	throw re;
             }
         } catch (IOException ioe) {
             throw new UncheckedIOException(ioe);
@@ -116,23 +209,15 @@ public final class Stash implements Closeable {
         var absPath = path.toAbsolutePath().toString();
         ioRun(() -> {
             var uuid = UUID.nameUUIDFromBytes(absPath.getBytes("UTF-8"));
-            Files.deleteIfExists(root.resolve(uuid.toString()));
-            if (Files.exists(index)) {
-                var tempFile = index.getParent().resolve(index.getFileName().toString() + ".tmp");
-                Files.deleteIfExists(tempFile);
-                try(var wtrt = new PrintWriter(Files.newBufferedWriter(tempFile))) {
-                    try (var rdr = Files.newBufferedReader(index)) {
-                        String line;
-                        while ((line = rdr.readLine()) != null) {
-                            if(!line.startsWith(uuid.toString())) {
-                                wtrt.println(line);
-                            }
-                        }
-                    }
-                } catch (IOException ioe) {
-                    throw new UncheckedIOException(ioe);
-                }
-                IO.moveAcrossStores(tempFile, index, StandardCopyOption.REPLACE_EXISTING);
+            var item = items.remove(uuid);
+            if(item != null) {
+            	if(Files.exists(item.stashed(), LinkOption.NOFOLLOW_LINKS))
+            		IO.delete(item.stashed());
+            	append("-" + uuid);
+            	tombstones++;
+            	if(tombstones > COMPACT_THRESHOLD && tombstones > items.size()) {
+            		compact();
+            	}
             }
         });
     }
@@ -141,41 +226,291 @@ public final class Stash implements Closeable {
     	restoreAndClose(Optional.of(progress));
     }
     
+    /**
+     * Delete all created paths, then move all stashed paths back to where they came 
+     * from, and close the stash. Paths at the same depth are processed in parallel,
+     * created paths deepest first, and restored paths shallowest first so their
+     * parent directories always exist. A failure does not stop the other paths being
+     * processed. If there are any, the first is thrown with the rest suppressed, and
+     * the stash is left open so nothing more is lost.
+     * 
+     * @param progress progress
+     */
     public void restoreAndClose(Optional<Progress> progress) {
-    	created.forEach(f -> { 
-            IO.delete(f);
-           progress.ifPresent(p -> p.info(RESOURCES.getString("deleted"), f.toString()));
+    	var sprogress = progress.map(Progress::synchronizedProgress);
+    	var errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    	
+    	List<Path> delete;
+        List<Item> restore;
+        synchronized(this) {
+        	delete = new ArrayList<>(created);
+        	created.clear();
+        	restore = new ArrayList<>(items.values());
+        	items.clear();
+        	closeIndex();
+        }
+        
+        sprogress.ifPresent(p -> {
+        	p.reset();
+        	p.total(delete.size() + restore.size());
         });
-        created.clear();
-    	 
-        var items = new ArrayList<Item>();
-        if (Files.exists(index)) {
+        
+        var workers = IO.workers("Stash", parallelism);
+        try {
+        	byDepth(delete, p -> -p.getNameCount(), workers, errors, f -> {
+        		try {
+	        		if(Files.exists(f, LinkOption.NOFOLLOW_LINKS)) {
+	        			IO.delete(f);
+	        			sprogress.ifPresent(p -> p.info(RESOURCES.getString("deleted"), f.toString()));
+	        		}
+        		}
+        		finally {
+        			sprogress.ifPresent(p -> p.step());
+        		}
+        	});
+        	
+        	byDepth(restore, i -> i.path().getNameCount(), workers, errors, item -> {
+        		try {
+        			/* Not there if an interrupted run was stopped before it was moved */
+        			if(Files.exists(item.stashed(), LinkOption.NOFOLLOW_LINKS)) {
+	        			IO.moveAcrossStores(item.stashed(), checkParentDir(item.path()), StandardCopyOption.REPLACE_EXISTING);
+	        			sprogress.ifPresent(p -> p.info(RESOURCES.getString("restored"), item.path().getFileName()));
+        			}
+        		}
+        		finally {
+        			sprogress.ifPresent(p -> p.step());
+        		}
+        	});
+        }
+        finally {
+        	workers.shutdown();
+        }
+        
+        var tasks = new ArrayList<>(onRestore);
+        Collections.reverse(tasks);
+        tasks.forEach(Runnable::run);
+        
+        if(errors.isEmpty()) {
+        	close();
+        }
+        else {
+        	sprogress.ifPresent(p -> p.error(RESOURCES.getString("failed"), errors.size()));
+        	var first = errors.get(0);
+        	errors.subList(1, errors.size()).forEach(first::addSuppressed);
+        	if(first instanceof RuntimeException re)
+        		throw re;
+        	else if(first instanceof Error err)
+        		throw err;
+        	else if(first instanceof IOException ioe)
+        		throw new UncheckedIOException(ioe);
+        	else
+        		throw new IllegalStateException(first);
+        }
+    }
+    
+    private static <T> void byDepth(List<T> items, ToIntFunction<T> depth, ExecutorService workers, List<Throwable> errors, Consumer<T> task) {
+    	var levels = new TreeMap<Integer, List<T>>();
+    	for(var item : items) {
+    		levels.computeIfAbsent(depth.applyAsInt(item), k -> new ArrayList<>()).add(item);
+    	}
+    	
+    	for(var level : levels.values()) {
+    		var futures = new ArrayList<Future<?>>(level.size());
+    		for(var item : level) {
+    			futures.add(workers.submit(() -> {
+    				try {
+    					task.accept(item);
+    				}
+    				catch(Throwable t) {
+    					errors.add(t);
+    				}
+    			}));
+    		}
+    		
+    		/* The whole level must be done before the next starts */
+    		for(var future : futures) {
+    			try {
+    				future.get();
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    				errors.add(e);
+    				return;
+    			} catch (ExecutionException e) {
+    				errors.add(e.getCause());
+    			}
+    		}
+    	}
+    }
+
+    private synchronized void addCreated(Path path) {
+    	var absPath = path.toAbsolutePath();
+    	created.add(absPath);
+    	ioRun(() -> append(CREATED + "\t" + absPath));
+    }
+
+    /* Index entries are appended as they happen, rather than rewriting the index, 
+     * with removals recorded as tombstones. */
+    private void append(String line) throws IOException {
+    	if(writer == null) {
+    		checkDir(root);
+    		writer = Files.newBufferedWriter(index, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    	}
+    	writer.write(line);
+    	writer.newLine();
+    	writer.flush();
+    }
+
+    private void compact() throws IOException {
+    	closeIndex();
+        var tempFile = index.resolveSibling(index.getFileName().toString() + ".tmp");
+        try(var wtr = Files.newBufferedWriter(tempFile)) {
+        	for(var storeRoot : roots.values()) {
+        		if(!storeRoot.equals(root)) {
+        			wtr.write(ROOT + "\t" + storeRoot);
+        			wtr.newLine();
+        		}
+        	}
+        	for(var path : created) {
+        		wtr.write(CREATED + "\t" + path);
+        		wtr.newLine();
+        	}
+        	for(var item : items.values()) {
+        		wtr.write(item.uuid() + "\t" + item.stashed() + "\t" + item.path());
+        		wtr.newLine();
+        	}
+        }
+        Files.move(tempFile, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tombstones = 0;
+    }
+
+    private void load() {
+    	if(Files.exists(index)) {
             try (var rdr = Files.newBufferedReader(index)) {
                 String line;
                 while ((line = rdr.readLine()) != null) {
-                    var idx = line.indexOf(' ');
-                    items.add(new Item(UUID.fromString(line.substring(0, idx)), Paths.get(line.substring(idx + 1))));
+                	if(line.startsWith("-")) {
+                		items.remove(UUID.fromString(line.substring(1)));
+                		tombstones++;
+                	}
+                	else if(line.startsWith(CREATED + "\t")) {
+                		created.add(Paths.get(line.substring(2)));
+                	}
+                	else if(line.startsWith(ROOT + "\t")) {
+                		var storeRoot = Paths.get(line.substring(2));
+                		if(Files.exists(storeRoot)) {
+                			IO.storeKey(storeRoot).ifPresent(k -> roots.put(k, storeRoot));
+                		}
+                	}
+                	else {
+	                    var fields = line.split("\t", 3);
+	                    var uuid = UUID.fromString(fields[0]);
+	                    items.put(uuid, new Item(uuid, Paths.get(fields[2]), Paths.get(fields[1])));
+                	}
                 }
             } catch (IOException ioe) {
                 throw new UncheckedIOException(ioe);
             }
-            ioRun(() -> Files.delete(index));
+    	}
+    }
+
+    /* A hidden sibling of the installation directory, named after it, so it is the same
+     * for every run and survives the installation directory being removed */
+    private static Optional<Path> home(SetupAppContext<?, ?> context) {
+        try {
+        	var location = context.installLocation().toAbsolutePath();
+        	var parent = location.getParent();
+        	if(parent != null && location.getFileName() != null && writable(parent)) {
+        		return Optional.of(parent.resolve(STASH_PREFIX + location.getFileName()));
+        	}
         }
-        Collections.reverse(items);
-        for (var item : items) {
-            ioRun(() -> IO.moveAcrossStores(root.resolve(item.uuid.toString()), checkParentDir(item.path()),
-                    StandardCopyOption.REPLACE_EXISTING));
-            progress.ifPresent(p -> p.info(RESOURCES.getString("restored"), item.path().getFileName()));
+        catch(IllegalStateException ise) {
+        	/* No installation location yet */
         }
-        close();
+        return Optional.empty();
+    }
+
+    /* Stashed paths are kept on the same file store as the path, so stashing and 
+     * restoring is a rename rather than a copy. Only two locations are ever used: the 
+     * stash root, or the temporary directory, whichever is on the same store. If neither 
+     * are, the stash root is used and the path is copied. Any location other than the 
+     * root is recorded in the index, so it can be found again to clean up. */
+    private Path rootFor(Path path) throws IOException {
+    	var key = IO.storeKey(path.getParent() == null ? path : path.getParent());
+    	if(key.isEmpty())
+    		return root;
+    	
+    	var storeRoot = roots.get(key.get());
+    	if(storeRoot == null) {
+    		storeRoot = root;
+    		for(var candidate : List.of(root, tmpRoot)) {
+    			if(key.equals(IO.storeKey(candidate)) && writable(candidate)) {
+    				storeRoot = candidate;
+    				break;
+    			}
+    		}
+    		checkDir(storeRoot);
+    		if(!storeRoot.equals(root)) {
+    			append(ROOT + "\t" + storeRoot);
+    		}
+    		roots.put(key.get(), storeRoot);
+    	}
+    	return storeRoot;
+    }
+    
+    private static boolean writable(Path dir) {
+    	var existing = dir;
+    	while(existing != null && !Files.exists(existing)) {
+    		existing = existing.getParent();
+    	}
+    	return existing != null && Files.isWritable(existing);
+    }
+
+    private void closeIndex() {
+    	if(writer != null) {
+    		try {
+    			writer.close();
+    		}
+    		catch(IOException ioe) {
+    			throw new UncheckedIOException(ioe);
+    		}
+    		finally {
+    			writer = null;
+    		}
+    	}
     }
 
     @Override
     public void close()  {
+    	synchronized(this) {
+    		closeIndex();
+    		items.clear();
+    		tombstones = 0;
+    	}
+    	
+    	synchronized(this) {
+    		for(var storeRoot : roots.values()) {
+    			if(!storeRoot.equals(root) && Files.exists(storeRoot))
+    				IO.delete(storeRoot);
+    		}
+    		roots.clear();
+    	}
     	
     	if(Files.exists(root))
     		IO.delete(root);
     	
+    	if(persistent) {
+			/* Shared by other stashes, so only removed by the last one */
+			try {
+				Files.deleteIfExists(root.getParent());
+			}
+			catch(DirectoryNotEmptyException dnee) {
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+    	}
+    	
         created.clear();
+        onRestore.clear();
     }
 }
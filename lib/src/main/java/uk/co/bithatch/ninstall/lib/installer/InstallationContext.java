@@ -22,7 +22,9 @@ package uk.co.bithatch.ninstall.lib.installer;
 
 import java.nio.file.Path;
 
+import uk.co.bithatch.ninstall.lib.CopyStrategy;
 import uk.co.bithatch.ninstall.lib.DirectoryAnalysis;
+import uk.co.bithatch.ninstall.lib.InstallSource;
 import uk.co.bithatch.ninstall.lib.SetupAppContext;
 import uk.co.bithatch.ninstall.lib.SetupAppOptions;
 
@@ -31,4 +33,14 @@ public interface InstallationContext extends SetupAppContext<Installer, SetupApp
     Path sourceLocation();
     
     DirectoryAnalysis.Results archiveAnalysis();
+    
+    InstallSource source();
+    
+    int parallelism();
+    
+    CopyStrategy copyStrategy();
+    
+    boolean verify();
+    
+    boolean upgrade();
 }
@@ -21,8 +21,6 @@
 package uk.co.bithatch.ninstall.lib.installer;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -37,13 +35,16 @@ import com.sshtools.liftlib.OS;
 
 import uk.co.bithatch.ninstall.lib.AppAttribute;
 import uk.co.bithatch.ninstall.lib.AttributeKey;
-import uk.co.bithatch.ninstall.lib.DirectoryAnalysis;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
+import uk.co.bithatch.ninstall.lib.CopyStrategy;
+import uk.co.bithatch.ninstall.lib.InstallSource;
 import uk.co.bithatch.ninstall.lib.IO;
 import uk.co.bithatch.ninstall.lib.InstallResult;
 import uk.co.bithatch.ninstall.lib.Machine;
 import uk.co.bithatch.ninstall.lib.Mode;
 import uk.co.bithatch.ninstall.lib.Registry;
 import uk.co.bithatch.ninstall.lib.Scope;
+import uk.co.bithatch.ninstall.lib.SelfExtractor;
 import uk.co.bithatch.ninstall.lib.SetupApp;
 import uk.co.bithatch.ninstall.lib.SetupAppOptions;
 import uk.co.bithatch.ninstall.lib.DirectoryAnalysis.Results;
@@ -54,6 +55,11 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
         private String name;
         private Optional<Path> installPath = Optional.empty();
         private Optional<Path> sourceLocation = Optional.empty();
+        private Optional<Path> archive = Optional.empty();
+        private int parallelism = 1;
+        private CopyStrategy copyStrategy = CopyStrategy.COPY;
+        private boolean verify;
+        private boolean upgrade;
         
         public Builder(String name) {
             this.name = name;
@@ -72,11 +78,97 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
             return withSourceLocation(Paths.get(path));
         }
 
+        /**
+         * Install straight from this payload archive instead of from files extracted to the
+         * source location. By default the archive is the one named by the
+         * {@link SelfExtractor#ARCHIVE_ENV} environment variable, if any.
+         * 
+         * @param archive archive
+         * @return this for chaining
+         */
+        public Builder withArchive(Path archive) {
+            this.archive = Optional.of(archive);
+            return this;
+        }
+
         public Builder withSourceLocation(Path sourcePath) {
             this.sourceLocation = Optional.of(sourcePath);
             return this;
         }
 
+        /**
+         * Set how many files may be installed at the same time. The default of
+         * <code>1</code> installs files one at a time.
+         * 
+         * @param parallelism number of concurrent file installs
+         * @return this for chaining
+         */
+        public Builder withParallelism(int parallelism) {
+        	if(parallelism < 1)
+        		throw new IllegalArgumentException("Parallelism must be at least 1.");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Install as many files at the same time as there are available processors.
+         * 
+         * @return this for chaining
+         */
+        public Builder withParallelism() {
+            return withParallelism(Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Set how each file is placed in the install location. The default 
+         * {@link CopyStrategy#COPY} always copies content. When the source is a 
+         * temporary directory, {@link CopyStrategy#MOVE} will turn installation into
+         * renames where possible.
+         * 
+         * @param copyStrategy copy strategy
+         * @return this for chaining
+         */
+        public Builder withCopyStrategy(CopyStrategy copyStrategy) {
+            this.copyStrategy = copyStrategy;
+            return this;
+        }
+
+        public Builder withVerify() {
+        	return withVerify(true);
+        }
+        
+        /**
+         * Set whether the digest of every installed file is checked against the one
+         * recorded in the package's {@link ContentManifest}. Files without a recorded
+         * digest are not checked.
+         * 
+         * @param verify verify installed files
+         * @return this for chaining
+         */
+        public Builder withVerify(boolean verify) {
+        	this.verify = verify;
+        	return this;
+        }
+
+        public Builder withUpgrade() {
+        	return withUpgrade(true);
+        }
+        
+        /**
+         * Set whether installing over an existing installation only replaces the
+         * files that have changed. Files already installed with the same size and
+         * modification time (or the same content) are left alone, and files
+         * installed by the previous version that are no longer in the package are
+         * removed.
+         * 
+         * @param upgrade upgrade
+         * @return this for chaining
+         */
+        public Builder withUpgrade(boolean upgrade) {
+        	this.upgrade = upgrade;
+        	return this;
+        }
+
         public Installer build() {
             return new Installer(this);
         }
@@ -85,12 +177,24 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
     private final String name;
     private final Optional<Path> installPath;
     private final Path sourceLocation;
+    private final Optional<Path> archive;
+    private final int parallelism;
+    private final CopyStrategy copyStrategy;
+    private final boolean verify;
+    private final boolean upgrade;
+    
+    private InstallSource source;
 
     private Installer(Builder bldr) {
         super(bldr, InstallerToolkit.class);
         this.name = bldr.name;
         this.installPath = bldr.installPath;
         this.sourceLocation = bldr.sourceLocation.orElseGet(IO::cwd);
+        this.archive = bldr.archive.or(() -> Optional.ofNullable(System.getenv(SelfExtractor.ARCHIVE_ENV)).map(Paths::get));
+        this.parallelism = bldr.parallelism;
+        this.copyStrategy = bldr.copyStrategy;
+        this.verify = bldr.verify;
+        this.upgrade = bldr.upgrade;
     }
     
     public String name() {
@@ -107,6 +211,20 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
             AppAttribute.save(context().installLocation(), context().attributes());
     }
 
+    @Override
+    protected void alwaysAfterSetup(InstallResult result) {
+    	synchronized(this) {
+	    	if(source != null) {
+	    		try {
+	    			source.close();
+	    		}
+	    		finally {
+	    			source = null;
+	    		}
+	    	}
+    	}
+    }
+
     @Override
     protected InstallationContext createContext(Scope scope, Registry registry, SetupAppOptions options, Mode mode) {
         return new InstallationContext() {
@@ -149,23 +267,32 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
             @Override
             public Results archiveAnalysis() {
                 if(analysis == null) {
-                    try {
-                        analysis = new DirectoryAnalysis(sourceLocation()).analyse(sourcesFilter());
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
+                	analysis = new Results(source().snapshot(), sourcesFilter());
                 }
                 return analysis;
             }
 
+            @Override
+            public InstallSource source() {
+            	synchronized(Installer.this) {
+	            	if(source == null) {
+	            		source = InstallSource.of(sourceLocation(), archive, sourcesFilter());
+	            	}
+	            	return source;
+            	}
+            }
+            
             private Predicate<? super Path> sourcesFilter() {
             	
             	var thisExe = Paths.get(ProcessHandle.current().info().command().orElseThrow(
                         () -> new IllegalStateException("Could not determine own executable."))
                         );
             	
+            	/* Only the manifest at the root is ours, any other file of that name is payload */
+            	var manifest = sourceLocation.resolve(ContentManifest.FILENAME);
+            	
 				return p -> {
-	                if(p.getFileName().equals(thisExe.getFileName())) {
+	                if(p.getFileName().equals(thisExe.getFileName()) || p.equals(manifest) || archive.map(p::equals).orElse(false)) {
 	                    return false;
 	                }
 					return !p.equals(sourceLocation);
@@ -177,6 +304,26 @@ public final class Installer extends SetupApp<InstallationContext, InstallerTool
                 return sourceLocation;
             }
 
+            @Override
+            public int parallelism() {
+                return parallelism;
+            }
+
+            @Override
+            public CopyStrategy copyStrategy() {
+                return copyStrategy;
+            }
+
+            @Override
+            public boolean verify() {
+                return verify;
+            }
+
+            @Override
+            public boolean upgrade() {
+                return upgrade;
+            }
+
             @Override
             public Registry registry() {
                 return registry;
@@ -20,16 +20,33 @@
  */
 package uk.co.bithatch.ninstall.lib.installer.steps;
 
+import static uk.co.bithatch.ninstall.lib.IO.ioCall;
 import static uk.co.bithatch.ninstall.lib.IO.ioRun;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.ResourceBundle;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
+import uk.co.bithatch.ninstall.lib.ContentManifest;
+import uk.co.bithatch.ninstall.lib.FileTreeSnapshot;
+import uk.co.bithatch.ninstall.lib.Formatting;
 import uk.co.bithatch.ninstall.lib.IO;
-import uk.co.bithatch.ninstall.lib.ProgressOutputStream;
+import uk.co.bithatch.ninstall.lib.Journal;
+import uk.co.bithatch.ninstall.lib.Progress;
+import uk.co.bithatch.ninstall.lib.Stash;
 import uk.co.bithatch.ninstall.lib.installer.InstallStep;
 import uk.co.bithatch.ninstall.lib.installer.InstallStepContext;
 
@@ -40,6 +57,7 @@ public final class InstallFiles implements InstallStep {
 	public final static ResourceBundle RESOURCES = ResourceBundle.getBundle(InstallFiles.class.getName());
     
 	private int files;
+	private Predicate<Path> reusable = p -> false;
 //
     @Override
     public float init(InstallStepContext context) throws Exception {
@@ -50,60 +68,45 @@ public final class InstallFiles implements InstallStep {
 
     @Override
     public void apply(InstallStepContext context) throws Exception {
-    	var progress = context.progress();
-    	var analysis = context.setup().archiveAnalysis();
+    	/* Read what the previous version (or an interrupted run) installed before the 
+    	 * journal is rewritten */
+    	var upgrade = context.setup().upgrade();
+    	var resuming = context.journals().resuming();
+    	var previous = upgrade || resuming
+    			? context.journals().journalledCall(FILES_JOURNAL_AND_STASH, (stash, journal) -> journal.paths().toList())
+    			: List.<Path>of();
     	
-    	context.journals().journalled(FILES_JOURNAL_AND_STASH, (stash, journal) -> {
-    		
-    		var rootPath = analysis.path();
-	        var installLocation = context.setup().installLocation();
-	        
-	        var fc = new AtomicInteger();
-	        try (var stream = Files.walk(rootPath, Integer.MAX_VALUE)) {
-	            stream.filter(p -> analysis.filter().test(p)).forEach(file -> { 
-	            	try {
-	            		progress.reset();
-	            		
-		                var rel = rootPath.relativize(file);                    
-		                var install = installLocation.resolve(rel);
-		                
-		                stash.stashOrCreated(install);
-		                
-		                if(Files.isDirectory(file)) {
-		                	ioRun(() -> {
-		                        var attrs = IO.attrs(file);
-		                        Files.createDirectories(install);
-		                        attrs.set(install);
-		                    });
-		                }
-		                else {
-		                	progress.total(Files.size(file));
-		                    ioRun(() -> {
-		                        var attrs = IO.attrs(file);
-		                        try(var iout = Files.newOutputStream(install)) {
-		                            try(var in = Files.newInputStream(file)) {
-		                                in.transferTo(new ProgressOutputStream(iout, progress));
-		                            }
-		                        }
-		                        attrs.set(install);
-		                    });
-		                    progress.info(RESOURCES.getString("installed"), rel.toString());
-		                }
-		                journal.log(rel);
-	            	}
-	            	catch(IOException ioe) {
-	            		throw new UncheckedIOException(ioe);
-	            	}
-	            	finally {
-	            		fc.incrementAndGet();
-	            		progress.complete();
-	            		progress.parent().step();
-	
-	                	IO.delay(10);
-	            	}
-	            });
-	        }
-    	});
+    	/* When upgrading, any existing file may be kept if it is unchanged. When resuming, 
+    	 * only those the interrupted run logged as installed may be */
+    	if(upgrade) {
+    		reusable = p -> true;
+    	}
+    	else if(resuming) {
+    		var logged = new HashSet<>(previous);
+    		reusable = logged::contains;
+    	}
+    	else {
+    		reusable = p -> false;
+    	}
+    	
+    	var required = requiredSpace(context);
+    	var usable = IO.usableSpace(context.setup().installLocation());
+    	if(usable < required) {
+    		throw new IOException(MessageFormat.format(RESOURCES.getString("notEnoughSpace"), 
+    				Formatting.toByteSize(required), Formatting.toByteSize(usable)));
+    	}
+    	
+    	var parallelism = context.setup().parallelism();
+    	if(parallelism > 1) {
+    		applyParallel(context, parallelism);
+    	}
+    	else {
+    		applySequential(context);
+    	}
+    	
+    	if(upgrade && !previous.isEmpty()) {
+    		removeObsolete(context, previous);
+    	}
     }
 
     @Override
@@ -119,4 +122,241 @@ public final class InstallFiles implements InstallStep {
     		stash.close();
     	});
     }
+
+	private void applySequential(InstallStepContext context) throws Exception {
+		var progress = context.progress();
+    	var snapshot = context.setup().archiveAnalysis().snapshot();
+    	
+    	context.journals().journalled(FILES_JOURNAL_AND_STASH, (stash, journal) -> {
+	        var installLocation = context.setup().installLocation();
+	        
+	        for(var entry : snapshot) {
+            	try {
+            		progress.reset();
+            		
+	                var rel = entry.path();                    
+	                var install = installLocation.resolve(rel);
+	                
+	                if(entry.directory()) {
+	                	installDirectory(context, stash, journal, entry, install);
+	                }
+	                else {
+	                	progress.total(entry.size());
+	                	installFile(context, progress, stash, journal, entry, install);
+	                }
+            	}
+            	finally {
+            		progress.complete();
+            		progress.parent().step();
+
+                	IO.delay(10);
+            	}
+	        }
+    	});
+	}
+
+	private void applyParallel(InstallStepContext context, int parallelism) throws Exception {
+		/* Progress is shared by all workers. Rather than tracking each file, it tracks
+		 * the total bytes of all files. */
+		var progress = Progress.synchronizedProgress(context.progress());
+    	var snapshot = context.setup().archiveAnalysis().snapshot();
+    	
+    	context.journals().journalled(FILES_JOURNAL_AND_STASH, (stash, journal) -> {
+	        var installLocation = context.setup().installLocation();
+	        var failure = new AtomicReference<Throwable>();
+	        var workers = IO.workers("InstallFiles", parallelism);
+	        
+	        progress.reset();
+	        progress.total(snapshot.totalSize());
+	        
+	        try {
+	        	for(var entry : snapshot) {
+	            	checkFailure(failure);
+	            	
+	                var install = installLocation.resolve(entry.path());
+	                
+	                if(entry.directory()) {
+	                	/* Directories are created by this thread, so they always exist 
+	                	 * before any of their children are handed to a worker. */
+	                	try {
+	                		installDirectory(context, stash, journal, entry, install);
+	                	}
+	                	finally {
+	                		progress.parent().step();
+	                	}
+	                }
+	                else {
+	                	workers.execute(() -> {
+	                		if(failure.get() != null)
+	                			return;
+	                		try {
+	                			installFile(context, progress, stash, journal, entry, install);
+	                		}
+	                		catch(Throwable t) {
+	                			if(!failure.compareAndSet(null, t)) {
+	                				failure.get().addSuppressed(t);
+	                			}
+	                		}
+	                		finally {
+	                			progress.parent().step();
+	                			IO.delay(10);
+	                		}
+	                	});
+	                }
+	        	}
+	        }
+	        finally {
+	        	workers.shutdown();
+	        	try {
+	        		while(!workers.awaitTermination(1, TimeUnit.SECONDS));
+	        	}
+	        	catch(InterruptedException ie) {
+	        		workers.shutdownNow();
+	        		throw ie;
+	        	}
+	        }
+	        
+	        checkFailure(failure);
+    	});
+	}
+
+	private void checkFailure(AtomicReference<Throwable> failure) {
+		var t = failure.get();
+		if(t instanceof RuntimeException re)
+			throw re;
+		else if(t instanceof Error err)
+			throw err;
+		else if(t instanceof IOException ioe)
+			throw new UncheckedIOException(ioe);
+		else if(t != null)
+			throw new IllegalStateException(t);
+	}
+
+	private void removeObsolete(InstallStepContext context, List<Path> previous) throws Exception {
+		var progress = context.progress();
+		var current = context.setup().archiveAnalysis().snapshot().stream().map(FileTreeSnapshot.Entry::path).collect(Collectors.toSet());
+		var installLocation = context.setup().installLocation();
+		
+    	context.journals().journalled(FILES_JOURNAL_AND_STASH, (stash, journal) -> {
+    		/* Previous paths are in reverse order, so children are always removed before their parents */
+    		for(var path : previous) {
+    			if(current.contains(path))
+    				continue;
+    			
+    			var install = installLocation.resolve(path);
+    			if(Files.isDirectory(install, LinkOption.NOFOLLOW_LINKS)) {
+    				/* Leave directories that still contain anything not installed by us */
+    				try(var dir = Files.newDirectoryStream(install)) {
+    					if(dir.iterator().hasNext())
+    						continue;
+    				}
+    			}
+    			else if(!Files.exists(install, LinkOption.NOFOLLOW_LINKS)) {
+    				continue;
+    			}
+    			
+    			stash.stash(install);
+    			progress.info(RESOURCES.getString("removed"), path.toString());
+    		}
+    	});
+	}
+
+	/* Files that are already in place are not written again, and moved or linked 
+	 * files take no more space. Replaced files are stashed on the same store until
+	 * the install commits, so they still count in full. */
+	private long requiredSpace(InstallStepContext context) throws IOException {
+		var installLocation = context.setup().installLocation();
+		var source = context.setup().source();
+		var strategy = context.setup().copyStrategy();
+		var required = 0l;
+		for(var entry : context.setup().archiveAnalysis().snapshot()) {
+			if(entry.directory())
+				continue;
+			var install = installLocation.resolve(entry.path());
+			if(reusable.test(entry.path()) && inPlace(entry, install))
+				continue;
+			required += source.requiredSpace(strategy, entry, install);
+		}
+		return required;
+	}
+	
+	private static boolean inPlace(FileTreeSnapshot.Entry entry, Path install) throws IOException {
+		try {
+			var attrs = Files.readAttributes(install, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return attrs.isRegularFile() && attrs.size() == entry.size() && 
+					attrs.lastModifiedTime().toMillis() == entry.lastModified().toMillis();
+		}
+		catch(NoSuchFileException nsfe) {
+			return false;
+		}
+	}
+
+	private boolean unchanged(InstallStepContext context, FileTreeSnapshot.Entry entry, Path install) {
+		if(!reusable.test(entry.path()))
+			return false;
+		
+		return ioCall(() -> {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(install, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			}
+			catch(NoSuchFileException nsfe) {
+				return false;
+			}
+			
+			if(!attrs.isRegularFile() || attrs.size() != entry.size())
+				return false;
+			
+			if(attrs.lastModifiedTime().toMillis() == entry.lastModified().toMillis())
+				return true;
+			
+			/* Same size but different time, only the content can tell */
+			String expected;
+			if(entry.sha256().isPresent()) {
+				expected = entry.sha256().get();
+			}
+			else {
+				try(var in = context.setup().source().open(entry)) {
+					expected = ContentManifest.sha256(in);
+				}
+			}
+			return expected.equals(ContentManifest.sha256(install));
+		});
+	}
+
+	private void installDirectory(InstallStepContext context, Stash stash, Journal journal, FileTreeSnapshot.Entry entry, Path install) {
+		if(!reusable.test(entry.path()) || !Files.isDirectory(install, LinkOption.NOFOLLOW_LINKS)) {
+			stash.stashOrCreated(install);
+		}
+		ioRun(() -> {
+		    Files.createDirectories(install);
+		    entry.attrs().set(install);
+		});
+		journal.log(entry.path());
+	}
+
+	private void installFile(InstallStepContext context, Progress progress, Stash stash, Journal journal, FileTreeSnapshot.Entry entry, Path install) {
+		if(unchanged(context, entry, install)) {
+			progress.step(entry.size());
+			progress.info(RESOURCES.getString("unchanged"), entry.path().toString());
+			journal.log(entry.path());
+			return;
+		}
+		
+		stash.stashOrCreated(install);
+		ioRun(() -> {
+		    context.setup().source().install(context.setup().copyStrategy(), entry, install, Optional.of(progress));
+		    if(Files.isSymbolicLink(install))
+		    	return;
+		    entry.attrs().set(install);
+		    if(context.setup().verify() && entry.sha256().isPresent()) {
+		    	var sha256 = ContentManifest.sha256(install);
+		    	if(!sha256.equals(entry.sha256().get())) {
+		    		throw new IOException(MessageFormat.format(RESOURCES.getString("corrupt"), entry.path()));
+		    	}
+		    }
+		});
+		progress.info(RESOURCES.getString("installed"), entry.path().toString());
+		journal.log(entry.path());
+	}
 }
@@ -27,12 +27,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicReference;
 
 import uk.co.bithatch.ninstall.lib.Archives;
 import uk.co.bithatch.ninstall.lib.Formatting;
 import uk.co.bithatch.ninstall.lib.IO;
 import uk.co.bithatch.ninstall.lib.ProgressInputStream;
 import uk.co.bithatch.ninstall.lib.SDKMan;
+import uk.co.bithatch.ninstall.lib.Archives.EntryVisitor;
 import uk.co.bithatch.ninstall.lib.Archives.Format;
 import uk.co.bithatch.ninstall.lib.SDKMan.Content;
 import uk.co.bithatch.ninstall.lib.SDKMan.Package;
@@ -133,10 +135,29 @@ public final class InstallSDK implements InstallStep {
 	        	ioRunInTempDir(context.setup().installLocation(), archiveTmpdir -> {
 	        		stash.created(sdkpath.getParent());
 	        		IO.checkDir(sdkpath.getParent());
-		            Files.move(
-		            	Archives.extract(Format.fromFilename(archive.filename()), new ProgressInputStream(in, progress), archiveTmpdir).get(0), 
-		            	sdkpath
-		            );
+	        		/* The SDK is the top level directory of the archive */
+	        		var top = new AtomicReference<Path>();
+	        		var format = Format.fromFilename(archive.filename());
+	        		var extracted = Files.createDirectory(archiveTmpdir.resolve("extracted"));
+	        		EntryVisitor visitor = e -> {
+	        			var rel = extracted.relativize(e.path().normalize());
+	        			if(!rel.toString().isEmpty())
+	        				top.compareAndSet(null, extracted.resolve(rel.getName(0)));
+	        		};
+	        		if(format == Format.ZIP) {
+	        			/* Downloaded first, so it can be read through its central directory and 
+	        			 * its entries inflated concurrently */
+	        			var download = archiveTmpdir.resolve("download.zip");
+	        			Files.copy(new ProgressInputStream(in, progress), download);
+	        			Archives.extract(format, download, extracted, context.setup().parallelism(), e -> true, visitor);
+	        		}
+	        		else {
+	        			Archives.extract(format, new ProgressInputStream(in, progress), extracted, 
+	        					context.setup().parallelism(), e -> true, visitor);
+	        		}
+	        		if(top.get() == null)
+	        			throw new IOException("Empty archive " + archive.filename());
+		            Files.move(top.get(), sdkpath);
 	            	journal.log(context.setup().installLocation().relativize(sdkpath));
 	        	});
 	            
@@ -20,22 +20,39 @@
  */
 package uk.co.bithatch.ninstall.lib.packaging;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.co.bithatch.ninstall.lib.AttributeKey;
 import uk.co.bithatch.ninstall.lib.Executable;
+import uk.co.bithatch.ninstall.lib.Executable.BundledResource;
 import uk.co.bithatch.ninstall.lib.IO;
 import uk.co.bithatch.ninstall.lib.InputFileset;
 import uk.co.bithatch.ninstall.lib.JarPath;
 import uk.co.bithatch.ninstall.lib.Locations;
+import uk.co.bithatch.ninstall.lib.MultiCall;
 import uk.co.bithatch.ninstall.lib.OutputFileset;
+import uk.co.bithatch.ninstall.lib.Progress;
 import uk.co.bithatch.ninstall.lib.SetupAppFactory;
 
 public abstract class AbstractInstallablePackager extends Packager {
+	
+	public final static long DEFAULT_NATIVE_IMAGE_MEMORY = 4l * 1024 * 1024 * 1024;
 
     @SuppressWarnings("unchecked")
     public static abstract class Builder<PKGR extends AbstractInstallablePackager, BLDR extends Builder<PKGR, BLDR>>
@@ -45,6 +62,10 @@ public abstract class AbstractInstallablePackager extends Packager {
         private Optional<SetupAppFactory<?>> updater = Optional.empty();
         private Optional<String> installerName = Optional.empty();
         private Optional<Integer> parallelism = Optional.empty();
+        private Optional<Path> nativeImageCache = Optional.empty();
+        private long nativeImageMemory = DEFAULT_NATIVE_IMAGE_MEMORY;
+        private Optional<Integer> maxConcurrentNativeImages = Optional.empty();
+        private boolean multiCall;
         private final Map<String, Class<?>> otherApplications = new LinkedHashMap<>();;
 
         public BLDR withOther(String name, Class<?> app) {
@@ -62,6 +83,79 @@ public abstract class AbstractInstallablePackager extends Packager {
             return (BLDR) this;
         }
 
+        /**
+         * Cache native executables in {@link Executable#defaultCache()}.
+         * 
+         * @return this for chaining
+         */
+        public BLDR withNativeImageCache() {
+        	return withNativeImageCache(Executable.defaultCache());
+        }
+
+        /**
+         * Set the directory native executables are cached in, so unchanged setup applications
+         * are not built again. By default, they are not cached.
+         * 
+         * @param nativeImageCache cache directory
+         * @return this for chaining
+         */
+        public BLDR withNativeImageCache(Path nativeImageCache) {
+        	this.nativeImageCache = Optional.of(nativeImageCache);
+        	return (BLDR) this;
+        }
+        
+        public BLDR withoutNativeImageCache() {
+        	this.nativeImageCache = Optional.empty();
+        	return (BLDR) this;
+        }
+
+        /**
+         * Set how much memory a single <code>native-image</code> build needs, in bytes. This
+         * decides how many setup applications are built at once. Defaults to 4 GiB.
+         * 
+         * @param nativeImageMemory memory per build
+         * @return this for chaining
+         * @throws IllegalArgumentException if memory is not positive
+         */
+        public BLDR withNativeImageMemory(long nativeImageMemory) {
+        	if(nativeImageMemory < 1)
+        		throw new IllegalArgumentException("Native image memory must be at least 1 byte.");
+        	this.nativeImageMemory = nativeImageMemory;
+        	return (BLDR) this;
+        }
+        
+        /**
+         * Limit how many <code>native-image</code> builds may run at once. By default this is 
+         * decided by the processors and memory available.
+         * 
+         * @param maxConcurrentNativeImages maximum concurrent builds
+         * @return this for chaining
+         * @throws IllegalArgumentException if the maximum is less than 1
+         */
+        public BLDR withMaxConcurrentNativeImages(int maxConcurrentNativeImages) {
+        	if(maxConcurrentNativeImages < 1)
+        		throw new IllegalArgumentException("At least 1 concurrent native image build must be allowed.");
+        	this.maxConcurrentNativeImages = Optional.of(maxConcurrentNativeImages);
+        	return (BLDR) this;
+        }
+
+        public BLDR withMultiCall() {
+        	return withMultiCall(true);
+        }
+        
+        /**
+         * Set whether the installer, uninstaller, updater and other applications are built into a
+         * single native executable, rather than one each. The executable is named after the first
+         * of them, and the others are hard links to it. See {@link MultiCall}.
+         * 
+         * @param multiCall build a single multi-call executable
+         * @return this for chaining
+         */
+        public BLDR withMultiCall(boolean multiCall) {
+        	this.multiCall = multiCall;
+        	return (BLDR) this;
+        }
+
         public BLDR withInstaller(SetupAppFactory<?> installer) {
             Packager.checkExecutableTask(installer.getClass());
             this.installer = Optional.of(installer);
@@ -98,6 +192,10 @@ public abstract class AbstractInstallablePackager extends Packager {
     private final Map<String, Class<?>> otherApplications;
     
     protected final Optional<Integer> parallelism;
+    protected final Optional<Path> nativeImageCache;
+    protected final long nativeImageMemory;
+    protected final Optional<Integer> maxConcurrentNativeImages;
+    protected final boolean multiCall;
 
     protected AbstractInstallablePackager(Builder<?, ?> bldr) {
         super(bldr);
@@ -107,6 +205,10 @@ public abstract class AbstractInstallablePackager extends Packager {
         this.updater = bldr.updater;
         this.installerName = bldr.installerName;
         this.parallelism = bldr.parallelism;
+        this.nativeImageCache = bldr.nativeImageCache;
+        this.nativeImageMemory = bldr.nativeImageMemory;
+        this.maxConcurrentNativeImages = bldr.maxConcurrentNativeImages;
+        this.multiCall = bldr.multiCall;
     }
     
     public final Optional<SetupAppFactory<?>> installer() {
@@ -125,22 +227,27 @@ public abstract class AbstractInstallablePackager extends Packager {
     protected int visit(PackagerContext ctx, PackageFileVisitor visitor) {
         var visited = new AtomicInteger(super.visit(ctx, visitor));
         var noInputs = visited.get() == 0;
-        installer.ifPresent(i -> {
-            buildExe(ctx, visitor, i, PackagerAttributes.INSTALLER_PATH, installerName);
-            visited.incrementAndGet();
-        });
-        uninstaller.ifPresent(i -> {
-            buildExe(ctx, visitor, i, null, Optional.of("uninstall"));
-            visited.incrementAndGet();
-        });
-        updater.ifPresent(i -> {
-            buildExe(ctx, visitor, i, null, Optional.of("update"));
-            visited.incrementAndGet();
-        });
-        otherApplications.forEach((app, clazz) -> {
-            buildOtherExe(ctx, visitor, clazz, null, Optional.of(app));
+        
+        var exes = new ArrayList<SetupExecutable>();
+        installer.ifPresent(i -> exes.add(new SetupExecutable(installerName, i.getClass(), Optional.of(i), PackagerAttributes.INSTALLER_PATH)));
+        uninstaller.ifPresent(i -> exes.add(new SetupExecutable(Optional.of("uninstall"), i.getClass(), Optional.of(i), null)));
+        updater.ifPresent(i -> exes.add(new SetupExecutable(Optional.of("update"), i.getClass(), Optional.of(i), null)));
+        otherApplications.forEach((app, clazz) -> exes.add(new SetupExecutable(Optional.of(app), clazz, Optional.empty(), null)));
+        
+        /* Built concurrently, but added to the package in the same order as always */
+        List<Path> exePaths;
+        if(multiCall && exes.size() > 1) {
+            exePaths = generateMultiCall(ctx, exes);
+        }
+        else {
+            exePaths = generate(ctx, exes.stream().map(exe -> exe.factory().
+            		map(f -> buildExe(f, exe.name())).
+            		orElseGet(() -> buildOtherExe(exe.main(), exe.name()))).toList());
+        }
+        for(int i = 0 ; i < exes.size(); i++) {
+            addExe(ctx, visitor, exes.get(i).attr(), exePaths.get(i));
             visited.incrementAndGet();
-        });
+        }
 
         if(noInputs) {
         	if(visited.get() == 0)
@@ -153,40 +260,121 @@ public abstract class AbstractInstallablePackager extends Packager {
         return visited.get();
     }
 
-    protected void buildExe(PackagerContext ctx, PackageFileVisitor visitor, SetupAppFactory<?> appFactory, AttributeKey attr, Optional<String> executableName) {
+    protected Executable.Builder buildExe(SetupAppFactory<?> appFactory, Optional<String> executableName) {
         var bldr = createBasicBuilder(executableName).
             withMain(appFactory.getClass());
         
         appFactory.app().decorateExecutable(bldr);
         
-        runBuilder(ctx, visitor, attr, bldr);
+        return bldr;
     }
     
-    protected void buildOtherExe(PackagerContext ctx, PackageFileVisitor visitor, Class<?> i, AttributeKey attr, Optional<String> executableName) {
-        runBuilder(ctx, visitor, attr, 
-    		createBasicBuilder(executableName).
-            	withMain(i)
-        );
+    protected Executable.Builder buildOtherExe(Class<?> i, Optional<String> executableName) {
+        return createBasicBuilder(executableName).
+            withMain(i);
     }
 
-	private uk.co.bithatch.ninstall.lib.Executable.Builder createBasicBuilder(Optional<String> executableName) {
+	private Executable.Builder createBasicBuilder(Optional<String> executableName) {
+		/* TODO just the jars we need */
 		return new Executable.Builder().
             withVerboseOutput(verboseOutput).
             withParallelism(parallelism).
+            withCache(nativeImageCache).
             withExecutableName(executableName).
+            withClasspath(new JarPath.Builder().fromCurrentJarpath().build()).
             withOptions(
                 "--enable-http",
                 "--enable-https"
             );
 	}
+	
+	/**
+	 * Generate executables, as many at once as the processors and memory allow. Each 
+	 * <code>native-image</code> needs several gigabytes, so the number of concurrent builds is
+	 * limited by {@link #nativeImageMemory}, and the processors (or {@link #parallelism}) and 
+	 * memory are then divided between them.
+	 * 
+	 * @param ctx context
+	 * @param builders executable builders
+	 * @return paths of executables, in the same order as the builders
+	 */
+	protected List<Path> generate(PackagerContext ctx, List<Executable.Builder> builders) {
+		var cpus = parallelism.orElseGet(Runtime.getRuntime()::availableProcessors);
+		var memory = physicalMemory().map(m -> m * 3 / 4);
+		var concurrent = Math.min(builders.size(), Math.min(cpus / 2, maxConcurrentNativeImages.orElse(Integer.MAX_VALUE)));
+		if(memory.isPresent())
+			concurrent = (int)Math.min(concurrent, memory.get() / nativeImageMemory);
+		
+		if(concurrent < 2) {
+			return builders.stream().map(b -> b.build().generate(ctx.progress())).toList();
+		}
+		
+		var builds = concurrent;
+		var threads = Math.max(1, cpus / builds);
+		var heap = memory.map(m -> m / builds);
+		ctx.progress().info("Building {0} native images, {1} at a time, each with {2} threads", builders.size(), builds, threads);
+		
+		var progress = Progress.synchronizedProgress(ctx.progress());
+		var executor = Executors.newFixedThreadPool(builds, IO.threads("NativeImage"));
+		try {
+			var futures = builders.stream().map(b -> executor.submit(() -> 
+				b.withParallelism(threads).withMaxMemory(heap).build().generate(progress))).toList();
+			var paths = new ArrayList<Path>();
+			for(var future : futures) {
+				paths.add(await(future));
+			}
+			return paths;
+		}
+		finally {
+			/* Interrupts any builds still running after a failure */
+			executor.shutdownNow();
+		}
+	}
 
-	private void runBuilder(PackagerContext ctx, PackageFileVisitor visitor, AttributeKey attr,
-			uk.co.bithatch.ninstall.lib.Executable.Builder bldr) {
-		/* TODO just the jars we need */
-        bldr.withClasspath(new JarPath.Builder().fromCurrentJarpath().build());
-        
-        var exe = bldr.build();
-        var exePath = exe.generate(ctx.progress());
+	private List<Path> generateMultiCall(PackagerContext ctx, List<SetupExecutable> exes) {
+		var names = exes.stream().map(exe -> exe.name().orElse("installer")).toList();
+		var mains = exes.stream().map(exe -> exe.main().getName()).toList();
+		
+		return IO.ioCallInTempDir(tmp -> {
+			/* Written without Properties.store() so there is no timestamp to defeat the cache */
+			var apps = tmp.resolve(MultiCall.RESOURCE);
+			try(var wtr = new PrintWriter(Files.newBufferedWriter(apps))) {
+				for(int i = 0 ; i < names.size(); i++) {
+					wtr.println(names.get(i) + "=" + mains.get(i));
+				}
+			}
+			var reflection = tmp.resolve("reflect-config.json");
+			Files.writeString(reflection, MultiCall.reflectionConfig(new LinkedHashSet<>(mains)));
+			
+			/* Only the main class is extracted by default, so the applications are added too */
+			var bldr = createBasicBuilder(Optional.of(names.get(0))).
+				withMain(MultiCall.class).
+				withClasses(exes.stream().<Class<?>>map(SetupExecutable::main).distinct().toList()).
+				withResources(
+					new BundledResource(MultiCall.RESOURCE, apps),
+					new BundledResource(MultiCall.REFLECTION_CONFIG, reflection)
+				);
+			exes.forEach(exe -> exe.factory().ifPresent(f -> f.app().decorateExecutable(bldr)));
+			
+			var exePath = generate(ctx, List.of(bldr)).get(0);
+			var exePaths = new ArrayList<Path>();
+			exePaths.add(exePath);
+			for(var name : names.subList(1, names.size())) {
+				var link = exePath.resolveSibling(name);
+				ctx.progress().info("ln {0} {1}", exePath.getFileName(), link.getFileName());
+				try {
+					Files.createLink(link, exePath);
+				}
+				catch(IOException | UnsupportedOperationException e) {
+					Files.copy(exePath, link, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				exePaths.add(link);
+			}
+			return exePaths;
+		});
+	}
+
+	private void addExe(PackagerContext ctx, PackageFileVisitor visitor, AttributeKey attr, Path exePath) {
         if(attr != null)
             ctx.attributes().put(attr, exePath);
         
@@ -198,4 +386,27 @@ public abstract class AbstractInstallablePackager extends Packager {
                     build(), exePath)
         );
 	}
+	
+	private static Path await(Future<Path> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted.", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException re)
+				throw re;
+			else
+				throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	private static Optional<Long> physicalMemory() {
+		if(ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)
+			return Optional.of(os.getTotalMemorySize());
+		else
+			return Optional.empty();
+	}
+	
+	private record SetupExecutable(Optional<String> name, Class<?> main, Optional<SetupAppFactory<?>> factory, AttributeKey attr) {
+	}
 }
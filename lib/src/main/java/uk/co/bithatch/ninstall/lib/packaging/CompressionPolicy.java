@@ -0,0 +1,249 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib.packaging;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how each entry of a ZIP package is compressed. Content that is already 
+ * compressed, such as jars, images and nested archives, gains almost nothing from being
+ * deflated again, but costs time both when packaging and when installing. Such entries 
+ * are stored instead, recognised either by their extension or by sampling the start of 
+ * the file and measuring how random it looks.
+ */
+public final class CompressionPolicy {
+	
+	public final static Set<String> COMPRESSED_EXTENSIONS = Set.of(
+		"jar", "war", "ear", "jmod", "zip", "gz", "tgz", "bz2", "xz", "txz", "zst", "7z", "rar",
+		"png", "jpg", "jpeg", "gif", "webp", "ico", "mp3", "mp4", "ogg", "webm", "woff", "woff2", "pdf"
+	);
+	
+	public enum Method {
+		STORED, DEFLATED
+	}
+	
+	/**
+	 * How an entry is compressed, and why.
+	 * 
+	 * @param method method
+	 * @param level deflate level, or -1 for the default
+	 * @param reason why this compression was chosen
+	 */
+	public record Compression(Method method, int level, String reason) {
+	}
+	
+	public final static class Builder {
+		private int level = Deflater.DEFAULT_COMPRESSION;
+		private final Set<String> stored = new LinkedHashSet<>(COMPRESSED_EXTENSIONS);
+		private final Map<String, Integer> levels = new HashMap<>();
+		private long minimumSize = 0;
+		private int sampleSize = 4096;
+		private double maximumEntropy = 7.5;
+		
+		/**
+		 * Deflate level to use for entries that have no level of their own.
+		 * 
+		 * @param level level, 0-9 or -1 for the default
+		 * @return this for chaining
+		 */
+		public Builder withLevel(int level) {
+			this.level = checkLevel(level);
+			return this;
+		}
+		
+		/**
+		 * Deflate level to use for entries with an extension.
+		 * 
+		 * @param extension extension, without the dot
+		 * @param level level, 0-9 or -1 for the default
+		 * @return this for chaining
+		 */
+		public Builder withLevel(String extension, int level) {
+			levels.put(extension.toLowerCase(), checkLevel(level));
+			stored.remove(extension.toLowerCase());
+			return this;
+		}
+		
+		/**
+		 * Store entries with these extensions without compressing them.
+		 * 
+		 * @param extensions extensions, without the dot
+		 * @return this for chaining
+		 */
+		public Builder withStored(String... extensions) {
+			Arrays.asList(extensions).forEach(ext -> {
+				stored.add(ext.toLowerCase());
+				levels.remove(ext.toLowerCase());
+			});
+			return this;
+		}
+		
+		/**
+		 * Do not store any extensions by default, only those added using {@link #withStored(String...)}.
+		 * 
+		 * @return this for chaining
+		 */
+		public Builder withoutDefaultStored() {
+			stored.removeAll(COMPRESSED_EXTENSIONS);
+			return this;
+		}
+		
+		/**
+		 * Store entries smaller than this, as there is little to gain from compressing them.
+		 * 
+		 * @param minimumSize minimum size to compress
+		 * @return this for chaining
+		 */
+		public Builder withMinimumSize(long minimumSize) {
+			this.minimumSize = minimumSize;
+			return this;
+		}
+		
+		/**
+		 * Sample up to this many bytes from the start of each file whose extension says 
+		 * nothing, and store it if the sample has more than the maximum entropy. Random or 
+		 * already compressed data is close to 8 bits per byte, text is usually nearer 5.
+		 * 
+		 * @param sampleSize bytes to sample, or 0 to disable sampling
+		 * @param maximumEntropy maximum bits per byte to still compress
+		 * @return this for chaining
+		 */
+		public Builder withEntropySample(int sampleSize, double maximumEntropy) {
+			this.sampleSize = sampleSize;
+			this.maximumEntropy = maximumEntropy;
+			return this;
+		}
+		
+		public Builder withoutEntropySample() {
+			return withEntropySample(0, maximumEntropy);
+		}
+		
+		public CompressionPolicy build() {
+			return new CompressionPolicy(this);
+		}
+		
+		private static int checkLevel(int level) {
+			if(level < -1 || level > 9)
+				throw new IllegalArgumentException("Level must be between 0 and 9, or -1 for the default.");
+			return level;
+		}
+	}
+	
+	/**
+	 * Stores content that is already compressed, and deflates everything else at the default level.
+	 * 
+	 * @return policy
+	 */
+	public static CompressionPolicy defaultPolicy() {
+		return new Builder().build();
+	}
+	
+	/**
+	 * Deflates everything at the default level.
+	 * 
+	 * @return policy
+	 */
+	public static CompressionPolicy deflateAll() {
+		return new Builder().withoutDefaultStored().withoutEntropySample().build();
+	}
+	
+	private final int level;
+	private final Set<String> stored;
+	private final Map<String, Integer> levels;
+	private final long minimumSize;
+	private final int sampleSize;
+	private final double maximumEntropy;
+	
+	private CompressionPolicy(Builder bldr) {
+		level = bldr.level;
+		stored = Set.copyOf(bldr.stored);
+		levels = Map.copyOf(bldr.levels);
+		minimumSize = bldr.minimumSize;
+		sampleSize = bldr.sampleSize;
+		maximumEntropy = bldr.maximumEntropy;
+	}
+	
+	/**
+	 * Choose the compression for a file.
+	 * 
+	 * @param name name of entry
+	 * @param path file
+	 * @param size size of file
+	 * @return compression
+	 * @throws IOException on error sampling the file
+	 */
+	public Compression select(String name, Path path, long size) throws IOException {
+		var extension = extension(name);
+		if(extension.isPresent()) {
+			if(stored.contains(extension.get()))
+				return new Compression(Method.STORED, 0, "." + extension.get());
+			var extLevel = levels.get(extension.get());
+			if(extLevel != null)
+				return new Compression(extLevel == 0 ? Method.STORED : Method.DEFLATED, extLevel, "." + extension.get());
+		}
+		
+		if(size < minimumSize) {
+			return new Compression(Method.STORED, 0, "size");
+		}
+		
+		if(sampleSize > 0 && size > 0) {
+			var entropy = entropy(path);
+			if(entropy > maximumEntropy)
+				return new Compression(Method.STORED, 0, String.format("entropy %.2f", entropy));
+		}
+		
+		return new Compression(level == 0 ? Method.STORED : Method.DEFLATED, level, "default");
+	}
+	
+	private double entropy(Path path) throws IOException {
+		byte[] sample;
+		try(var in = Files.newInputStream(path)) {
+			sample = in.readNBytes(sampleSize);
+		}
+		var counts = new int[256];
+		for(var b : sample) {
+			counts[b & 0xff]++;
+		}
+		var entropy = 0d;
+		for(var count : counts) {
+			if(count > 0) {
+				var p = (double)count / sample.length;
+				entropy -= p * Math.log(p) / Math.log(2);
+			}
+		}
+		return entropy;
+	}
+	
+	private static Optional<String> extension(String name) {
+		var idx = name.lastIndexOf('.');
+		var sep = name.lastIndexOf('/');
+		return idx > sep + 1 ? Optional.of(name.substring(idx + 1).toLowerCase()) : Optional.empty();
+	}
+}
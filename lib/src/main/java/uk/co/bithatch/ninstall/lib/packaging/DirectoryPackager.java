@@ -27,6 +27,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 
+import uk.co.bithatch.ninstall.lib.ContentManifest;
 import uk.co.bithatch.ninstall.lib.DisplayMode;
 import uk.co.bithatch.ninstall.lib.IO;
 import uk.co.bithatch.ninstall.lib.Mode;
@@ -62,13 +63,27 @@ public class DirectoryPackager extends AbstractInstallablePackager {
             ctx.progress().command("mkdir {0}", displayPath(ctx.output()));
             IO.ioCall(() -> Files.createDirectories(ctx.output()));
         }
+        var content = new ContentManifest.Builder();
         visit(ctx, (output, input, path) -> {
             var out = output.resolve(path, input.base(), ctx.target(), Layout.FLAT);
             var absOut = ctx.output().resolve(out);
-                ctx.progress().command("cp {0} {1}", displayPath(path), displayPath(absOut));
-           		Files.copy(path, checkParentDir(absOut), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            ctx.progress().command("cp {0} {1}", displayPath(path), displayPath(absOut));
+            if(Files.isRegularFile(path)) {
+            	IO.transfer(path, checkParentDir(absOut));
+            	IO.copyModeAndTimes(path, absOut);
+            }
+            else {
+            	Files.copy(path, checkParentDir(absOut), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            if(contentManifest) {
+            	content.add(out.toString(), path);
+            }
         });
         
+        if(contentManifest) {
+        	IO.ioRun(() -> content.build().write(ctx.output().resolve(ContentManifest.FILENAME)));
+        }
+        
         return new Package() {
 
             @Override
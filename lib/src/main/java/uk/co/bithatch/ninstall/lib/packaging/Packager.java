@@ -37,6 +37,7 @@ import java.util.function.Supplier;
 
 import uk.co.bithatch.ninstall.lib.AttributeKey;
 import uk.co.bithatch.ninstall.lib.BuildContext;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
 import uk.co.bithatch.ninstall.lib.IO;
 import uk.co.bithatch.ninstall.lib.InputFileset;
 import uk.co.bithatch.ninstall.lib.Machine;
@@ -63,6 +64,10 @@ public abstract class Packager {
         private Optional<Runnable> postInstall = Optional.empty();
         private boolean verboseOutput;
         private boolean clean = true;
+        private boolean contentManifest = true;
+        private boolean packagingReport;
+        private boolean incremental;
+        private CompressionPolicy compressionPolicy = CompressionPolicy.defaultPolicy();
 
         public BLDR withoutClean() {
         	return withClean(false);
@@ -72,6 +77,71 @@ public abstract class Packager {
         	this.clean = clean;
         	return (BLDR)this;
         }
+        public BLDR withoutContentManifest() {
+        	return withContentManifest(false);
+        }
+        
+        /**
+         * Set whether a {@link ContentManifest} is added to the root of the package. The
+         * installer uses it to learn the size, mode and digest of every file without
+         * scanning them. Defaults to <code>true</code>.
+         * 
+         * @param contentManifest add content manifest
+         * @return this for chaining
+         */
+        public BLDR withContentManifest(boolean contentManifest) {
+        	this.contentManifest = contentManifest;
+        	return (BLDR)this;
+        }
+        
+        /**
+         * Set the policy that decides how each entry of an archive package is compressed,
+         * i.e. stored or deflated and at what level. Defaults to {@link CompressionPolicy#defaultPolicy()}.
+         * Packagers that compress the whole stream rather than individual entries ignore this.
+         * 
+         * @param compressionPolicy compression policy
+         * @return this for chaining
+         */
+        public BLDR withCompressionPolicy(CompressionPolicy compressionPolicy) {
+        	this.compressionPolicy = compressionPolicy;
+        	return (BLDR)this;
+        }
+        
+        public BLDR withPackagingReport() {
+        	return withPackagingReport(true);
+        }
+        
+        /**
+         * Set whether a report of how each entry was compressed is written alongside the
+         * package, in a file with the same name plus <code>.report</code>. Defaults to <code>false</code>.
+         * 
+         * @param packagingReport write packaging report
+         * @return this for chaining
+         */
+        public BLDR withPackagingReport(boolean packagingReport) {
+        	this.packagingReport = packagingReport;
+        	return (BLDR)this;
+        }
+        
+        public BLDR withIncremental() {
+        	return withIncremental(true);
+        }
+        
+        /**
+         * Set whether packaging is incremental. An index of every input file is kept alongside
+         * the package, in a file with the same name plus <code>.index</code>, and the previous package
+         * is not removed. Inputs that are unchanged since are then copied from the previous package 
+         * already compressed. Packagers that cannot reuse entries build from scratch as usual.
+         * Defaults to <code>false</code>.
+         * 
+         * @param incremental incremental
+         * @return this for chaining
+         */
+        public BLDR withIncremental(boolean incremental) {
+        	this.incremental = incremental;
+        	return (BLDR)this;
+        }
+        
         public BLDR withVerboseOutput(boolean verboseOutput) {
             this.verboseOutput = verboseOutput;
             return (BLDR)this;
@@ -112,6 +182,10 @@ public abstract class Packager {
     private final String filenamePattern;
     protected final boolean verboseOutput;
     protected final boolean clean;
+    protected final boolean contentManifest;
+    protected final boolean packagingReport;
+    protected final boolean incremental;
+    protected final CompressionPolicy compressionPolicy;
     
     protected Packager(Builder<?,?> bldr) {
         this.verboseOutput = bldr.verboseOutput;
@@ -119,6 +193,10 @@ public abstract class Packager {
         this.target = bldr.target;
         this.filenamePattern = bldr.filenamePattern.orElse(DEFAULT_FILENAME_PATTERN);
         this.clean = bldr.clean;
+        this.contentManifest = bldr.contentManifest;
+        this.packagingReport = bldr.packagingReport;
+        this.incremental = bldr.incremental;
+        this.compressionPolicy = bldr.compressionPolicy;
     }
     
     public Package make(Manifest manifest) {
@@ -149,7 +227,7 @@ public abstract class Packager {
             replace("${package.arch}", target.arch().name().toLowerCase()).
             replace("${package.ext}", extension()));
         
-        if(clean && Files.exists(pkgFile)) {
+        if(clean && Files.exists(pkgFile) && packagingIndex(pkgFile).filter(Files::exists).isEmpty()) {
             progress.command("rm {0}", displayPath(pkgFile));
             IO.delete(pkgFile);
         }
@@ -231,6 +309,26 @@ public abstract class Packager {
     
     protected abstract Package makeImpl(PackagerContext ctx);
     
+    /**
+     * Get where the packaging report for a package file should be written, if one was requested.
+     * 
+     * @param pkgFile package file
+     * @return report file
+     */
+    protected Optional<Path> packagingReport(Path pkgFile) {
+    	return packagingReport ? Optional.of(pkgFile.resolveSibling(pkgFile.getFileName() + ".report")) : Optional.empty();
+    }
+    
+    /**
+     * Get where the index of inputs for a package file is kept, if packaging is incremental.
+     * 
+     * @param pkgFile package file
+     * @return index file
+     */
+    protected Optional<Path> packagingIndex(Path pkgFile) {
+    	return incremental ? Optional.of(pkgFile.resolveSibling(pkgFile.getFileName() + ".index")) : Optional.empty();
+    }
+    
     protected Path calcLocation(Supplier<Path> defaultLocation) {
         return location.orElseGet(defaultLocation);
     } 
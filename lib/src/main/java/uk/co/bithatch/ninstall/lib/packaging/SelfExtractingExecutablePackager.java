@@ -26,10 +26,8 @@ import static uk.co.bithatch.ninstall.lib.IO.ioRun;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Properties;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
-import uk.co.bithatch.ninstall.lib.Archives;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
 import uk.co.bithatch.ninstall.lib.DisplayMode;
 import uk.co.bithatch.ninstall.lib.Executable;
 import uk.co.bithatch.ninstall.lib.IO;
@@ -72,20 +70,23 @@ public class SelfExtractingExecutablePackager extends AbstractInstallablePackage
             /* Zip of image */
             var data = tmp.resolve("data.zip");
             
-            try(var zos = new ZipOutputStream(Files.newOutputStream(data))) {
+            var content = new ContentManifest.Builder();
+            try(var zip = new ZipAssembler.Builder(data).
+                    withParallelism(parallelism).
+                    withContent(content).
+                    withCompressionPolicy(compressionPolicy).
+                    withReport(packagingReport(ctx.output())).
+                    build()) {
                 ctx.progress().command("sx {0}", displayPath(ctx.output()));
                 visit(ctx, (output, input, path) -> {
                     var out = output.resolve(path, input.base(), ctx.target(), Layout.FLAT);
-                    var outpath = out.toString() + (Files.isDirectory(path) ? "/" : "");
                     ctx.progress().info(" +{0}", displayPath(out));
-					var entry = new ZipEntry(outpath);
-                    Archives.putNextEntry(zos, entry, path);
-                    if(!Files.isDirectory(path)) {
-	                    try(var in = Files.newInputStream(path)) {
-	                        in.transferTo(zos);
-	                    }
-                    }
-                }); 
+                    zip.add(out.toString(), path);
+                });
+                if(contentManifest) {
+                	zip.flush();
+                	zip.add(ContentManifest.FILENAME, content.build());
+                } 
             }
             
             Path installerPath = (Path)ctx.attributes().get(PackagerAttributes.INSTALLER_PATH);
@@ -108,6 +109,7 @@ public class SelfExtractingExecutablePackager extends AbstractInstallablePackage
                 withOutputFile(ctx.output()).
                 withVerboseOutput(verboseOutput).
                 withParallelism(parallelism).
+                withCache(nativeImageCache).
                 withRootResourcePaths(data, props).
                 build().
                 generate(ctx.progress());
@@ -0,0 +1,603 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib.packaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import uk.co.bithatch.ninstall.lib.Archives;
+import uk.co.bithatch.ninstall.lib.Archives.HardLinks;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
+import uk.co.bithatch.ninstall.lib.IO;
+import uk.co.bithatch.ninstall.lib.packaging.CompressionPolicy.Compression;
+import uk.co.bithatch.ninstall.lib.packaging.CompressionPolicy.Method;
+
+/**
+ * Writes a ZIP archive whose entries are compressed concurrently. Each file is deflated
+ * by a worker thread, into memory or a temporary file if it is large, and the compressed
+ * entries are then copied into the archive as is, in the order they were added. The 
+ * archive is so the same whatever the number of threads.
+ * <p>
+ * Entries carry the permission and link markers of {@link Archives#markers(Path, Optional)},
+ * and files with more than one link are only stored once.
+ * <p>
+ * Given an {@link Builder#withIndex(Path) index}, files that are unchanged since the 
+ * previous archive was written to the same output are copied from it still compressed.
+ */
+public final class ZipAssembler implements Closeable {
+	
+	public final static class Builder {
+		private final Path output;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private Optional<ContentManifest.Builder> content = Optional.empty();
+		private CompressionPolicy policy = CompressionPolicy.defaultPolicy();
+		private Optional<Path> report = Optional.empty();
+		private Optional<Path> index = Optional.empty();
+		
+		public Builder(Path output) {
+			this.output = output;
+		}
+		
+		/**
+		 * Number of threads to compress with, defaults to the number of processors.
+		 * 
+		 * @param parallelism threads
+		 * @return this for chaining
+		 */
+		public Builder withParallelism(int parallelism) {
+			this.parallelism = Math.max(1, parallelism);
+			return this;
+		}
+		
+		public Builder withParallelism(Optional<Integer> parallelism) {
+			parallelism.ifPresent(this::withParallelism);
+			return this;
+		}
+		
+		/**
+		 * Add each entry to a content manifest as it is written, along with the digest
+		 * calculated while compressing it.
+		 * 
+		 * @param content content manifest builder
+		 * @return this for chaining
+		 */
+		public Builder withContent(ContentManifest.Builder content) {
+			this.content = Optional.of(content);
+			return this;
+		}
+		
+		/**
+		 * Policy choosing how each file is compressed, defaults to {@link CompressionPolicy#defaultPolicy()}.
+		 * 
+		 * @param policy policy
+		 * @return this for chaining
+		 */
+		public Builder withCompressionPolicy(CompressionPolicy policy) {
+			this.policy = policy;
+			return this;
+		}
+		
+		/**
+		 * Write a report listing how each entry was compressed, and why, to a file.
+		 * 
+		 * @param report report file
+		 * @return this for chaining
+		 */
+		public Builder withReport(Path report) {
+			return withReport(Optional.of(report));
+		}
+		
+		public Builder withReport(Optional<Path> report) {
+			this.report = report;
+			return this;
+		}
+		
+		/**
+		 * Build incrementally, keeping an index of the size, modification time, digest
+		 * and chosen compression of each file in the given file. If both the index and 
+		 * the output archive exist, files whose size, modification time and digest are 
+		 * unchanged since are copied from the previous archive as they are, without being 
+		 * compressed again.
+		 * 
+		 * @param index index file
+		 * @return this for chaining
+		 */
+		public Builder withIndex(Path index) {
+			return withIndex(Optional.of(index));
+		}
+		
+		public Builder withIndex(Optional<Path> index) {
+			this.index = index;
+			return this;
+		}
+		
+		public ZipAssembler build() throws IOException {
+			return new ZipAssembler(this);
+		}
+	}
+	
+	private final static int SPILL = 1024 * 1024;
+	private final static int BUFFER = 64 * 1024;
+	
+	private final ZipArchiveOutputStream out;
+	private final ExecutorService workers;
+	private final Deque<Future<Compressed>> pending = new ArrayDeque<>();
+	private final int window;
+	private final Optional<ContentManifest.Builder> content;
+	private final HardLinks links = new HardLinks();
+	private final CompressionPolicy policy;
+	private final Optional<PrintWriter> report;
+	private final Optional<Path> index;
+	private final Map<String, Fingerprint> fingerprints = new LinkedHashMap<>();
+	private final Map<String, Fingerprint> previousFingerprints;
+	private final Optional<Path> previousPath;
+	private final Optional<ZipFile> previous;
+	
+	private long latest;
+	private long totalSize;
+	private long totalCompressed;
+	
+	private ZipAssembler(Builder bldr) throws IOException {
+		content = bldr.content;
+		policy = bldr.policy;
+		window = bldr.parallelism * 2;
+		index = bldr.index;
+		
+		if(index.isPresent() && Files.exists(index.get()) && Files.exists(bldr.output)) {
+			/* The index is only written again once the new archive is complete */
+			previousFingerprints = Fingerprint.read(index.get());
+			Files.delete(index.get());
+			previousPath = Optional.of(bldr.output.resolveSibling(bldr.output.getFileName() + ".previous"));
+			Files.move(bldr.output, previousPath.get(), StandardCopyOption.REPLACE_EXISTING);
+			previous = openPrevious(previousPath.get());
+		}
+		else {
+			previousFingerprints = Map.of();
+			previousPath = Optional.empty();
+			previous = Optional.empty();
+		}
+		
+		workers = IO.workers("Zip", bldr.parallelism);
+		out = new ZipArchiveOutputStream(bldr.output);
+		if(bldr.report.isPresent()) {
+			report = Optional.of(new PrintWriter(Files.newBufferedWriter(bldr.report.get())));
+			report.get().println("# method\tlevel\tsize\tcompressed\treason\tname");
+		}
+		else {
+			report = Optional.empty();
+		}
+	}
+	
+	/**
+	 * Add a file or directory. Files are queued to be compressed, and the archive is
+	 * written up to the oldest entry not yet compressed.
+	 * 
+	 * @param name name of entry, without any trailing slash
+	 * @param path file
+	 * @throws IOException on error
+	 */
+	public void add(String name, Path path) throws IOException {
+		var directory = Files.isDirectory(path);
+		var hardLink = directory ? Optional.<String>empty() : links.link(path, name);
+		var extra = Archives.markers(path, hardLink);
+		var modified = Files.getLastModifiedTime(path).toMillis();
+		latest = Math.max(latest, modified);
+		if(directory || hardLink.isPresent()) {
+			var compression = new Compression(Method.STORED, 0, directory ? "directory" : "hard link to " + hardLink.get());
+			queue(CompletableFuture.completedFuture(new Compressed(directory ? name + "/" : name, Optional.of(path), extra, modified, 
+					compression, 0, 0, new Spill(), Optional.empty(), Optional.empty(), Optional.empty())));
+		}
+		else {
+			queue(workers.submit(() -> compress(name, path, extra, modified)));
+		}
+	}
+	
+	/**
+	 * Add an entry with the given content, for example a manifest. It is given the latest
+	 * modification time of the files added so far, rather than the current time, so that 
+	 * packaging the same files produces the same archive.
+	 * 
+	 * @param name name of entry
+	 * @param data content
+	 * @throws IOException on error
+	 */
+	public void add(String name, byte[] data) throws IOException {
+		var crc = new CRC32();
+		crc.update(data);
+		var spill = new Spill();
+		spill.write(data);
+		queue(CompletableFuture.completedFuture(new Compressed(name, Optional.empty(), new byte[0], latest, 
+				new Compression(Method.STORED, 0, "generated"), data.length, crc.getValue(), spill, Optional.empty(), Optional.empty(), Optional.empty())));
+	}
+
+	/**
+	 * Add a content manifest. Use {@link #flush()} first if it should include everything
+	 * added so far.
+	 * 
+	 * @param name name of entry
+	 * @param manifest manifest
+	 * @throws IOException on error
+	 */
+	public void add(String name, ContentManifest manifest) throws IOException {
+		var data = new ByteArrayOutputStream();
+		manifest.write(data);
+		add(name, data.toByteArray());
+	}
+	
+	/**
+	 * Wait for every entry added so far to be compressed and written.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void flush() throws IOException {
+		while(!pending.isEmpty()) {
+			writeNext();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			out.close();
+			report.ifPresent(r -> {
+				r.println(String.format("# %d bytes compressed to %d", totalSize, totalCompressed));
+				r.close();
+			});
+			if(index.isPresent()) {
+				Fingerprint.write(index.get(), fingerprints);
+			}
+		}
+		finally {
+			workers.shutdown();
+			discard();
+			report.ifPresent(PrintWriter::close);
+			if(previous.isPresent())
+				previous.get().close();
+			if(previousPath.isPresent())
+				Files.deleteIfExists(previousPath.get());
+		}
+	}
+	
+	private void queue(Future<Compressed> future) throws IOException {
+		pending.add(future);
+		while(pending.size() > window) {
+			writeNext();
+		}
+	}
+	
+	private void writeNext() throws IOException {
+		var compressed = await(pending.remove());
+		try {
+			var entry = new ZipArchiveEntry(compressed.name());
+			
+			entry.setExtra(compressed.extra());
+			
+			entry.setTime(compressed.modified());
+			entry.setSize(compressed.size());
+			entry.setCrc(compressed.crc());
+			if(compressed.reuse().isPresent()) {
+				/* Unchanged since the previous build, so copy the compressed bytes as they are */
+				var reuse = compressed.reuse().get();
+				entry.setMethod(reuse.getMethod());
+				entry.setCompressedSize(reuse.getCompressedSize());
+				try(var in = previous.get().getRawInputStream(reuse)) {
+					out.addRawArchiveEntry(entry, in);
+				}
+			}
+			else {
+				entry.setMethod(compressed.compression().method() == Method.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+				entry.setCompressedSize(compressed.data().size());
+				try(var in = compressed.data().input()) {
+					out.addRawArchiveEntry(entry, in);
+				}
+			}
+			compressed.fingerprint().ifPresent(f -> fingerprints.put(compressed.name(), f));
+			
+			totalSize += entry.getSize();
+			totalCompressed += entry.getCompressedSize();
+			report.ifPresent(r -> r.println(String.join("\t", 
+					entry.getMethod() == ZipEntry.STORED ? Method.STORED.name() : Method.DEFLATED.name(),
+					String.valueOf(compressed.compression().level()),
+					String.valueOf(compressed.size()),
+					String.valueOf(entry.getCompressedSize()),
+					compressed.compression().reason(),
+					compressed.name())));
+			
+			if(content.isPresent() && compressed.path().isPresent()) {
+				var manifestName = compressed.name().endsWith("/") ? compressed.name().substring(0, compressed.name().length() - 1) : compressed.name();
+				if(compressed.sha256().isPresent())
+					content.get().add(manifestName, compressed.path().get(), compressed.sha256().get());
+				else
+					content.get().add(manifestName, compressed.path().get());
+			}
+		}
+		finally {
+			compressed.data().delete();
+		}
+	}
+	
+	private void discard() {
+		while(!pending.isEmpty()) {
+			var future = pending.remove();
+			future.cancel(false);
+			try {
+				if(future.isDone() && !future.isCancelled())
+					future.get().data().delete();
+			}
+			catch(Exception e) {
+			}
+		}
+	}
+	
+	private static Compressed await(Future<Compressed> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted.", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException ioe)
+				throw ioe;
+			else if(e.getCause() instanceof UncheckedIOException uioe)
+				throw uioe.getCause();
+			else if(e.getCause() instanceof RuntimeException re)
+				throw re;
+			else
+				throw new IOException(e.getCause());
+		}
+	}
+	
+	private Compressed compress(String name, Path path, byte[] extra, long modified) throws IOException {
+		var size = Files.size(path);
+		var selected = policy.select(name, path, size);
+		
+		var reuse = reuse(name, path, extra, size, modified, selected);
+		if(reuse.isPresent())
+			return reuse.get();
+		
+		var compression = selected;
+		Compressed compressed = null;
+		if(compression.method() == Method.DEFLATED) {
+			compressed = deflate(name, path, extra, modified, compression);
+			if(compressed.data().size() >= size && size > 0) {
+				/* Deflating made it no smaller */
+				compressed.data().delete();
+				compressed = null;
+				compression = new Compression(Method.STORED, 0, "incompressible");
+			}
+		}
+		if(compressed == null)
+			compressed = store(name, path, extra, modified, compression);
+		
+		var fingerprint = new Fingerprint(compressed.size(), modified, selected.method(), selected.level(), 
+				HexFormat.of().formatHex(compressed.sha256().get()));
+		return compressed.withFingerprint(fingerprint);
+	}
+	
+	private Optional<Compressed> reuse(String name, Path path, byte[] extra, long size, long modified, Compression selected) throws IOException {
+		if(previous.isEmpty())
+			return Optional.empty();
+		var fingerprint = previousFingerprints.get(name);
+		if(fingerprint == null || fingerprint.size() != size || fingerprint.modified() != modified || 
+				fingerprint.method() != selected.method() || fingerprint.level() != selected.level())
+			return Optional.empty();
+		var entry = previous.get().getEntry(name);
+		if(entry == null || entry.getSize() != size || !previous.get().canReadEntryData(entry))
+			return Optional.empty();
+		
+		/* Size and time can match while content differs, so only identical content is 
+		 * reused. Reading the file is still far cheaper than compressing it again */
+		var din = ContentManifest.digestStream(Files.newInputStream(path));
+		try(var in = din) {
+			in.transferTo(OutputStream.nullOutputStream());
+		}
+		var sha256 = din.getMessageDigest().digest();
+		if(!MessageDigest.isEqual(sha256, HexFormat.of().parseHex(fingerprint.sha256())))
+			return Optional.empty();
+		
+		return Optional.of(new Compressed(name, Optional.of(path), extra, modified, 
+				entry.getMethod() == ZipEntry.STORED ? new Compression(Method.STORED, 0, "unchanged") : new Compression(Method.DEFLATED, selected.level(), "unchanged"), 
+				size, entry.getCrc(), new Spill(), Optional.of(sha256), 
+				Optional.of(fingerprint), Optional.of(entry)));
+	}
+	
+	private static Compressed store(String name, Path path, byte[] extra, long modified, Compression compression) throws IOException {
+		var crc = new CRC32();
+		var spill = new Spill();
+		try {
+			var din = ContentManifest.digestStream(Files.newInputStream(path));
+			long size;
+			try(var in = new CheckedInputStream(din, crc)) {
+				size = in.transferTo(spill);
+			}
+			spill.close();
+			return new Compressed(name, Optional.of(path), extra, modified, compression, 
+					size, crc.getValue(), spill, Optional.of(din.getMessageDigest().digest()), Optional.empty(), Optional.empty());
+		}
+		catch(IOException | RuntimeException e) {
+			spill.delete();
+			throw e;
+		}
+	}
+	
+	private static Compressed deflate(String name, Path path, byte[] extra, long modified, Compression compression) throws IOException {
+		var crc = new CRC32();
+		var spill = new Spill();
+		var deflater = new Deflater(compression.level(), true);
+		try {
+			var din = ContentManifest.digestStream(Files.newInputStream(path));
+			try(var in = new CheckedInputStream(din, crc); var dout = new DeflaterOutputStream(spill, deflater, BUFFER)) {
+				in.transferTo(dout);
+			}
+			return new Compressed(name, Optional.of(path), extra, modified, compression, 
+					deflater.getBytesRead(), crc.getValue(), spill, Optional.of(din.getMessageDigest().digest()), Optional.empty(), Optional.empty());
+		}
+		catch(IOException | RuntimeException e) {
+			spill.delete();
+			throw e;
+		}
+		finally {
+			deflater.end();
+		}
+	}
+	
+	private static Optional<ZipFile> openPrevious(Path path) {
+		try {
+			return Optional.of(ZipFile.builder().setPath(path).get());
+		}
+		catch(IOException ioe) {
+			/* Not readable, so everything is compressed again */
+			return Optional.empty();
+		}
+	}
+	
+	private record Fingerprint(long size, long modified, Method method, int level, String sha256) {
+		
+		static Map<String, Fingerprint> read(Path file) throws IOException {
+			var map = new HashMap<String, Fingerprint>();
+			try(var rdr = Files.newBufferedReader(file)) {
+				String line;
+				while( ( line = rdr.readLine() ) != null) {
+					if(line.startsWith("#") || line.isBlank())
+						continue;
+					var parts = line.split("\t", 6);
+					if(parts.length < 6)
+						throw new IOException("Corrupt packaging index " + file + ". " + line);
+					map.put(parts[5], new Fingerprint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), 
+							Method.valueOf(parts[2]), Integer.parseInt(parts[3]), parts[4]));
+				}
+			}
+			catch(IllegalArgumentException iae) {
+				throw new IOException("Corrupt packaging index " + file + ".", iae);
+			}
+			return map;
+		}
+		
+		static void write(Path file, Map<String, Fingerprint> fingerprints) throws IOException {
+			var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(var wtr = new PrintWriter(Files.newBufferedWriter(tmp))) {
+				wtr.println("# size\tmodified\tmethod\tlevel\tsha256\tname");
+				fingerprints.forEach((name, f) -> wtr.println(String.join("\t", 
+						String.valueOf(f.size()), 
+						String.valueOf(f.modified()), 
+						f.method().name(), 
+						String.valueOf(f.level()), 
+						f.sha256(), 
+						name)));
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private record Compressed(String name, Optional<Path> path, byte[] extra, long modified, Compression compression, long size, long crc, Spill data, 
+			Optional<byte[]> sha256, Optional<Fingerprint> fingerprint, Optional<ZipArchiveEntry> reuse) {
+		
+		Compressed withFingerprint(Fingerprint fingerprint) {
+			return new Compressed(name, path, extra, modified, compression, size, crc, data, sha256, Optional.of(fingerprint), reuse);
+		}
+	}
+
+	/**
+	 * Holds compressed data in memory until it grows too large, then in a temporary file.
+	 */
+	private final static class Spill extends OutputStream {
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private Path file;
+		private OutputStream fileOut;
+		private long size;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(fileOut == null && buffer.size() + len > SPILL) {
+				file = Files.createTempFile("zip", ".spill");
+				fileOut = Files.newOutputStream(file);
+				buffer.writeTo(fileOut);
+				buffer = null;
+			}
+			if(fileOut == null)
+				buffer.write(b, off, len);
+			else
+				fileOut.write(b, off, len);
+			size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(fileOut != null)
+				fileOut.close();
+		}
+		
+		long size() {
+			return size;
+		}
+		
+		InputStream input() throws IOException {
+			return file == null ? new ByteArrayInputStream(buffer.toByteArray()) : Files.newInputStream(file);
+		}
+		
+		void delete() {
+			buffer = null;
+			if(file != null) {
+				try {
+					close();
+					Files.deleteIfExists(file);
+				}
+				catch(IOException ioe) {
+				}
+			}
+		}
+	}
+}
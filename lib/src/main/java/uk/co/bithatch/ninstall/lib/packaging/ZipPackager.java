@@ -25,10 +25,8 @@ import static uk.co.bithatch.ninstall.lib.IO.ioRun;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
-import uk.co.bithatch.ninstall.lib.Archives;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
 import uk.co.bithatch.ninstall.lib.DisplayMode;
 import uk.co.bithatch.ninstall.lib.Mode;
 import uk.co.bithatch.ninstall.lib.Where.Layout;
@@ -56,20 +54,24 @@ public class ZipPackager extends AbstractInstallablePackager {
     protected Package makeImpl(PackagerContext ctx) {
 
         ioRun(() -> {
-            try(var zos = new ZipOutputStream(Files.newOutputStream(ctx.output()))) {
+            var content = new ContentManifest.Builder();
+            try(var zip = new ZipAssembler.Builder(ctx.output()).
+                    withParallelism(parallelism).
+                    withContent(content).
+                    withCompressionPolicy(compressionPolicy).
+                    withReport(packagingReport(ctx.output())).
+                    withIndex(packagingIndex(ctx.output())).
+                    build()) {
                 ctx.progress().command("zip {0}", displayPath(ctx.output()));
                 visit(ctx, (output, input, path) -> {
                     var out = output.resolve(path, input.base(), ctx.target(), Layout.FLAT);
-                    var outpath = out.toString() + (Files.isDirectory(path) ? "/" : "");
                     ctx.progress().info("+{0}", displayPath(out));
-                    var entry = new ZipEntry(outpath);
-                    Archives.putNextEntry(zos, entry, path);
-                    if(!Files.isDirectory(path)) {
-	                    try(var in = Files.newInputStream(path)) {
-	                        in.transferTo(zos);
-	                    }
-                    }
-                });        
+                    zip.add(out.toString(), path);
+                });
+                if(contentManifest) {
+                	zip.flush();
+                	zip.add(ContentManifest.FILENAME, content.build());
+                }
             }
         });
         
@@ -26,6 +26,7 @@ import java.util.Comparator;
 import java.util.ResourceBundle;
 
 import uk.co.bithatch.ninstall.lib.IO;
+import uk.co.bithatch.ninstall.lib.JournalLog;
 import uk.co.bithatch.ninstall.lib.Stash;
 import uk.co.bithatch.ninstall.lib.steps.AbstractRemoveDirectory;
 import uk.co.bithatch.ninstall.lib.uninstaller.UninstallStepContext;
@@ -65,12 +66,18 @@ public final class RemoveProgramDirectory extends AbstractRemoveDirectory<Uninst
 
             /* If all that's left is journal files, then stash those */
             var left = Files.walk(installloc).filter(p -> !p.equals(installloc)).count();
-            var leftJnls = Files.walk(installloc).filter(p -> p.getFileName().toString().endsWith(".jnl")).count();
+            var leftJnls = Files.walk(installloc).filter(RemoveProgramDirectory::isJournal).count();
             if(left == leftJnls) {
-                Files.walk(installloc).filter(p -> p.getFileName().toString().endsWith(".jnl")).forEach(stash::stash);
+            	context.journals().release();
+                Files.walk(installloc).filter(RemoveProgramDirectory::isJournal).forEach(stash::stash);
             }
         });
 
     }
+    
+    private static boolean isJournal(Path path) {
+    	var name = path.getFileName().toString();
+    	return name.endsWith(".jnl") || name.equals(JournalLog.FILENAME);
+    }
 
 }
@@ -21,11 +21,14 @@
 package uk.co.bithatch.ninstall.lib.uninstaller.steps;
 
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.ResourceBundle;
 
 import uk.co.bithatch.ninstall.lib.IO;
-import uk.co.bithatch.ninstall.lib.Journal;
+import uk.co.bithatch.ninstall.lib.SetupSequence;
+import uk.co.bithatch.ninstall.lib.Stash;
 import uk.co.bithatch.ninstall.lib.installer.steps.InstallFiles;
 import uk.co.bithatch.ninstall.lib.uninstaller.UninstallStep;
 import uk.co.bithatch.ninstall.lib.uninstaller.UninstallStepContext;
@@ -63,27 +66,16 @@ public class UninstallFiles implements UninstallStep {
     	context.journals().journalled(UNINSTALL, (stash, journal) -> {
     		
     		var fileJournal = context.journals().obtainJournal(InstallFiles.FILES_JOURNAL_AND_STASH);
-			fileJournal.paths().forEach(path -> {
-	            var rpath = context.setup().installLocation().resolve(path);
-	            stash.stash(rpath);
-	            IO.ioRun(() -> Files.deleteIfExists(rpath));
-	            progress.info(RESOURCES.getString("uninstalledFile"), path.getFileName().toString());    			
-    		});
+			fileJournal.paths().forEach(path -> uninstall(context, stash, path));
 			fileJournal.delete();
     		
     		/* Remaining journals */
-    		for(var otherJournal : Files.walk(context.setup().installLocation()).filter(p -> p.getFileName().toString().startsWith(".") && p.getFileName().toString().endsWith(".jnl")).map(context.journals()::obtainJournal).toList()) {
-    			
-    			if(otherJournal.equals(journal)) {
+    		for(var name : context.journals().names()) {
+    			if(name.equals(journal.name()) || SetupSequence.isSequence(name)) {
     				continue;
     			}
     			
-    			otherJournal.paths().forEach(path -> {
-		            var rpath = context.setup().installLocation().resolve(path);
-		            stash.stash(rpath);
-		            IO.ioRun(() -> Files.deleteIfExists(rpath));
-		            progress.info(RESOURCES.getString("uninstalledFile"), path.getFileName().toString());
-		        });
+    			context.journals().obtainJournal(name).paths().forEach(path -> uninstall(context, stash, path));
     		}
 	        
 	        if(removeAll) {
@@ -100,6 +92,16 @@ public class UninstallFiles implements UninstallStep {
         });
     }
 
+    private void uninstall(UninstallStepContext context, Stash stash, Path path) {
+        var rpath = context.setup().installLocation().resolve(path);
+        /* May already be gone, for example if removed by hand or with a parent directory */
+        if(Files.exists(rpath, LinkOption.NOFOLLOW_LINKS)) {
+        	stash.stash(rpath);
+        	IO.ioRun(() -> Files.deleteIfExists(rpath));
+        }
+        context.progress().info(RESOURCES.getString("uninstalledFile"), path.getFileName().toString());
+    }
+
     @Override
     public float init(UninstallStepContext context) throws Exception {
         // TODO now wrong
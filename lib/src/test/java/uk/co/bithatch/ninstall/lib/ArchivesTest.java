@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.ninstall.lib.Archives.Format;
+import uk.co.bithatch.ninstall.lib.packaging.ZipAssembler;
+
+public class ArchivesTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void tarKeepsHardLinks() throws IOException {
+		var src = source();
+		var archive = dir.resolve("out.tar.gz");
+		var links = new Archives.HardLinks();
+		try(var out = Archives.tar(Format.TAR_GZ, Files.newOutputStream(archive))) {
+			for(var path : paths(src)) {
+				var name = src.relativize(path).toString();
+				var hardLink = links.link(path, name);
+				Archives.putNextEntry(out, Files.isDirectory(path) ? name + "/" : name, path, hardLink);
+				if(hardLink.isEmpty() && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+					Files.copy(path, out);
+				out.closeArchiveEntry();
+			}
+		}
+		
+		assertExtracted(archive, Format.TAR_GZ);
+	}
+
+	@Test
+	void zipKeepsHardLinks() throws IOException {
+		var src = source();
+		var archive = dir.resolve("out.zip");
+		try(var out = new ZipAssembler.Builder(archive).build()) {
+			for(var path : paths(src)) {
+				out.add(src.relativize(path).toString(), path);
+			}
+		}
+		
+		assertExtracted(archive, Format.ZIP);
+	}
+
+	@Test
+	void sparseTarEntryIsExtracted() throws IOException {
+		var block = 512;
+		var hole = 2 * 1024 * 1024;
+		var archive = dir.resolve("sparse.tar");
+		
+		/* PAX 1.0 sparse entry, a map of the data regions followed by the data */
+		var map = Arrays.copyOf(("2\n0\n" + block + "\n" + (block + hole) + "\n" + block + "\n").getBytes(StandardCharsets.US_ASCII), block);
+		var a = new byte[block];
+		Arrays.fill(a, (byte)'a');
+		var b = new byte[block];
+		Arrays.fill(b, (byte)'b');
+		try(var out = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+			/* Written by hand, as Commons Compress keeps some of these headers to itself */
+			var pax = new StringBuilder();
+			pax(pax, "GNU.sparse.major", "1");
+			pax(pax, "GNU.sparse.minor", "0");
+			pax(pax, "GNU.sparse.name", "sparse.bin");
+			pax(pax, "GNU.sparse.realsize", String.valueOf(block + hole + block));
+			var headers = pax.toString().getBytes(StandardCharsets.UTF_8);
+			var paxEntry = new TarArchiveEntry("PaxHeaders/sparse.bin", TarConstants.LF_PAX_EXTENDED_HEADER_LC);
+			paxEntry.setSize(headers.length);
+			out.putArchiveEntry(paxEntry);
+			out.write(headers);
+			out.closeArchiveEntry();
+			
+			var entry = new TarArchiveEntry("sparse.bin");
+			entry.setSize(map.length + a.length + b.length);
+			out.putArchiveEntry(entry);
+			out.write(map);
+			out.write(a);
+			out.write(b);
+			out.closeArchiveEntry();
+		}
+		
+		var dest = dir.resolve("dest");
+		Archives.extract(Format.TAR, archive, dest);
+		
+		var data = Files.readAllBytes(dest.resolve("sparse.bin"));
+		assertEquals(block + hole + block, data.length);
+		assertArrayEquals(a, Arrays.copyOfRange(data, 0, block));
+		assertArrayEquals(new byte[hole], Arrays.copyOfRange(data, block, block + hole));
+		assertArrayEquals(b, Arrays.copyOfRange(data, block + hole, data.length));
+	}
+	
+	@Test
+	void entriesOutsideDestinationAreRejected() throws IOException {
+		var escape = dir.resolve("escape.tar");
+		try(var out = new TarArchiveOutputStream(Files.newOutputStream(escape))) {
+			var entry = new TarArchiveEntry("sub/../../escaped.txt");
+			entry.setSize(1);
+			out.putArchiveEntry(entry);
+			out.write('x');
+			out.closeArchiveEntry();
+		}
+		assertThrows(UncheckedIOException.class, () -> Archives.extract(Format.TAR, escape, dir.resolve("dest")));
+		assertFalse(Files.exists(dir.resolve("escaped.txt")));
+		
+		var link = dir.resolve("link.tar");
+		try(var out = new TarArchiveOutputStream(Files.newOutputStream(link))) {
+			var entry = new TarArchiveEntry("passwd", TarConstants.LF_LINK);
+			entry.setLinkName("../../../../etc/passwd");
+			out.putArchiveEntry(entry);
+			out.closeArchiveEntry();
+		}
+		assertThrows(UncheckedIOException.class, () -> Archives.extract(Format.TAR, link, dir.resolve("dest")));
+		assertFalse(Files.exists(dir.resolve("dest/passwd"), LinkOption.NOFOLLOW_LINKS));
+	}
+	
+	private static void pax(StringBuilder headers, String key, String value) {
+		var record = " " + key + "=" + value + "\n";
+		var len = record.length() + 1;
+		while(String.valueOf(len).length() + record.length() != len)
+			len++;
+		headers.append(len).append(record);
+	}
+	
+	private void assertExtracted(Path archive, Format format) throws IOException {
+		var dest = dir.resolve("dest");
+		var entries = Collections.synchronizedList(new ArrayList<Archives.Entry>());
+		Archives.extract(format, archive, dest, entries::add);
+		
+		assertEquals("content", Files.readString(dest.resolve("a.txt")));
+		assertEquals("content", Files.readString(dest.resolve("sub/b.txt")));
+		assertTrue(Files.isSameFile(dest.resolve("a.txt"), dest.resolve("sub/b.txt")));
+		assertEquals(Paths.get("a.txt"), Files.readSymbolicLink(dest.resolve("link")));
+		
+		var linked = entries.stream().filter(e -> e.name().equals("sub/b.txt")).findFirst().get();
+		assertEquals(Optional.of(dest.resolve("a.txt")), linked.hardLink());
+	}
+	
+	private Path source() throws IOException {
+		var src = Files.createDirectories(dir.resolve("src"));
+		var a = Files.writeString(src.resolve("a.txt"), "content");
+		Files.createLink(Files.createDirectories(src.resolve("sub")).resolve("b.txt"), a);
+		Files.createSymbolicLink(src.resolve("link"), Paths.get("a.txt"));
+		return src;
+	}
+	
+	private static List<Path> paths(Path src) throws IOException {
+		try(var walk = Files.walk(src)) {
+			return walk.filter(p -> !p.equals(src)).sorted().toList();
+		}
+	}
+}
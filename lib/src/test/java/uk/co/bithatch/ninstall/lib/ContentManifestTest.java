@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.bithatch.ninstall.lib.ContentManifest.Entry;
+
+public class ContentManifestTest {
+
+	@Test
+	void pathsAreEscaped() throws IOException {
+		var entry = new Entry("dir/odd\tname\\with\nbreaks", false, 3, 0644, 1000, Optional.of("abc"));
+		var out = new ByteArrayOutputStream();
+		new ContentManifest.Builder().add(entry).build().write(out);
+		
+		assertEquals(List.of(entry), ContentManifest.read(new ByteArrayInputStream(out.toByteArray())).entries());
+	}
+
+	@Test
+	void unknownHeaderIsRejected() {
+		var manifest = "# ninstall content 1\nf\t644\t1000\t3\t-\ta.txt\n".getBytes(StandardCharsets.UTF_8);
+		assertThrows(IOException.class, () -> ContentManifest.read(new ByteArrayInputStream(manifest)));
+	}
+}
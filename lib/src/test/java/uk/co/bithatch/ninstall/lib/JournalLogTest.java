@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.ninstall.lib.JournalLog.Type;
+
+public class JournalLogTest {
+	
+	@TempDir
+	Path dir;
+
+	@Test
+	void pathsAreNewestFirstWithoutDuplicates() {
+		try(var log = log(256)) {
+			log.append(Type.BEGIN, "files");
+			log(log, "files", "a", "a/b", "a/b/c.txt", "x");
+			log.append(Type.BEGIN, "shortcuts");
+			log(log, "shortcuts", "s1");
+			log(log, "files", "a");
+			
+			assertEquals(paths("a", "x", "a/b/c.txt", "a/b"), log.paths("files").toList());
+			assertEquals(paths("s1"), log.paths("shortcuts").toList());
+			assertEquals(Set.of("files", "shortcuts"), log.names());
+		}
+	}
+
+	@Test
+	void pathLoggedAgainAfterBeginIsNotADuplicate() {
+		try(var log = log(256)) {
+			log.append(Type.BEGIN, "files");
+			log(log, "files", "a");
+			log.append(Type.BEGIN, "files");
+			log(log, "files", "a");
+			log.append(Type.REVERT, "files");
+			
+			assertEquals(paths("a"), log.paths("files").toList());
+		}
+	}
+
+	@Test
+	void sameNameInAnotherJournalIsNotADuplicate() {
+		try(var log = log(256)) {
+			log(log, "one", "a");
+			log(log, "two", "a");
+			
+			assertEquals(paths("a"), log.paths("one").toList());
+			assertEquals(paths("a"), log.paths("two").toList());
+		}
+	}
+
+	@Test
+	void beginSupersedesAndRevertRestores() {
+		try(var log = log(2)) {
+			log.append(Type.BEGIN, "files");
+			log(log, "files", "old");
+			log.append(Type.BEGIN, "files");
+			log(log, "files", "new");
+			assertEquals(paths("new"), log.paths("files").toList());
+			
+			log.append(Type.REVERT, "files");
+			assertEquals(paths("old"), log.paths("files").toList());
+		}
+	}
+
+	@Test
+	void deleteRemovesJournal() {
+		try(var log = log(256)) {
+			log(log, "files", "a");
+			log(log, "shortcuts", "s1");
+			log.append(Type.DELETE, "shortcuts");
+			
+			assertEquals(Set.of("files"), log.names());
+			assertEquals(List.of(), log.paths("shortcuts").toList());
+		}
+	}
+
+	@Test
+	void reopenedAfterCompact() {
+		var file = dir.resolve(JournalLog.FILENAME);
+		try(var log = log(2)) {
+			for(var i = 0 ; i < 10; i++) {
+				log.append(Type.BEGIN, "files");
+				log(log, "files", "a", "b");
+			}
+		}
+		try(var log = log(2)) {
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+		
+		try(var log = log(2)) {
+			log.append(Type.DELETE, "files");
+		}
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	void closeOnlyCompactsWhenSupersededOrLarge() throws Exception {
+		var file = dir.resolve(JournalLog.FILENAME);
+		try(var log = log(2)) {
+			for(var i = 0 ; i < 3; i++) {
+				log.append(Type.BEGIN, "files");
+				log(log, "files", "a", "b");
+			}
+		}
+		var size = Files.size(file);
+		
+		try(var log = new JournalLog.Builder(file).withCompactThreshold(size + 1).build()) {
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+		assertEquals(size, Files.size(file));
+		
+		try(var log = new JournalLog.Builder(file).withCompactThreshold(size).build()) {
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+		assertTrue(Files.size(file) < size);
+		size = Files.size(file);
+		
+		try(var log = log(256)) {
+			log(log, "shortcuts", "s1");
+			log.append(Type.DELETE, "shortcuts");
+		}
+		assertEquals(size, Files.size(file));
+		try(var log = log(256)) {
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+	}
+
+	@Test
+	void tornBlockIsDiscarded() throws Exception {
+		var file = dir.resolve(JournalLog.FILENAME);
+		try(var log = log(256)) {
+			log(log, "files", "a");
+			log.release();
+		}
+		try(var ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ch.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 9, 1, 2 }));
+		}
+		try(var log = log(256)) {
+			log(log, "files", "b");
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+	}
+
+	@Test
+	void recordsAreKeptUntilWritten() throws Exception {
+		var sub = dir.resolve("later");
+		try(var log = new JournalLog.Builder(sub.resolve(JournalLog.FILENAME)).withFlushPolicy(1, Duration.ofDays(1)).build()) {
+			/* Can't be written yet */
+			log(log, "files", "a");
+			assertFalse(Files.exists(sub));
+			
+			Files.createDirectories(sub);
+			log(log, "files", "b");
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+		}
+	}
+
+	@Test
+	void logRecordsNeedAPath() {
+		try(var log = log(256)) {
+			assertThrows(IllegalArgumentException.class, () -> log.append(Type.LOG, "files"));
+		}
+	}
+
+	@Test
+	void failedWriteKeepsRecordsPending() throws Exception {
+		var file = dir.resolve(JournalLog.FILENAME);
+		try(var log = log(256)) {
+			log(log, "files", "a");
+			log.release();
+			
+			/* A directory where the log should be makes every write fail */
+			Files.move(file, dir.resolve("moved"));
+			Files.createDirectory(file);
+			log(log, "files", "b");
+			assertThrows(UncheckedIOException.class, log::flush);
+			
+			Files.delete(file);
+			Files.move(dir.resolve("moved"), file);
+			assertEquals(paths("b", "a"), log.paths("files").toList());
+			assertTrue(Files.size(file) > 0);
+		}
+	}
+	
+	private JournalLog log(int flushEntries) {
+		return new JournalLog.Builder(dir.resolve(JournalLog.FILENAME)).withFlushPolicy(flushEntries, Duration.ofDays(1)).build();
+	}
+	
+	private static void log(JournalLog log, String name, String... paths) {
+		for(var path : paths) {
+			log.append(Type.LOG, name, Optional.of(Paths.get(path)));
+		}
+	}
+	
+	private static List<Path> paths(String... paths) {
+		return List.of(paths).stream().map(Paths::get).toList();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sshtools.liftlib.OS;
+
+/**
+ * Applications are listed in the test resource {@link MultiCall#RESOURCE}.
+ */
+public class MultiCallTest {
+	
+	public final static class Hello {
+		static List<String> args;
+		
+		public static void main(String[] args) {
+			Hello.args = List.of(args);
+		}
+	}
+	
+	public final static class Fail {
+		public static void main(String[] args) {
+			throw new IllegalStateException("Failed.");
+		}
+	}
+	
+	public final static class Echo {
+		public static void main(String[] args) {
+			System.out.print(String.join(" ", args));
+		}
+	}
+	
+	@TempDir
+	Path dir;
+
+	@Test
+	void firstArgumentChoosesApplication() throws Throwable {
+		MultiCall.main(new String[] { "hello", "a", "b" });
+		assertEquals(List.of("a", "b"), Hello.args);
+	}
+
+	@Test
+	void invokedNameChoosesApplication() throws Exception {
+		/* The Java installation, but with the launcher hard linked as the application */
+		var home = Paths.get(System.getProperty("java.home"));
+		try(var stream = Files.list(home)) {
+			for(var path : stream.filter(p -> !p.getFileName().toString().equals("bin")).toList()) {
+				Files.createSymbolicLink(dir.resolve(path.getFileName().toString()), path);
+			}
+		}
+		var suffix = OS.isWindows() ? ".exe" : "";
+		var java = home.resolve("bin").resolve("java" + suffix);
+		var echo = Files.createDirectory(dir.resolve("bin")).resolve("echo" + suffix);
+		try {
+			Files.createLink(echo, java);
+		}
+		catch(IOException | UnsupportedOperationException e) {
+			/* Different file store, a copy is still invoked by its own name */
+			Files.copy(java, echo, StandardCopyOption.COPY_ATTRIBUTES);
+		}
+		
+		var process = new ProcessBuilder(echo.toString(), "-cp", System.getProperty("java.class.path"), 
+				MultiCall.class.getName(), "a", "b").redirectErrorStream(true).start();
+		var output = new String(process.getInputStream().readAllBytes());
+		assertEquals(0, process.waitFor(), output);
+		assertEquals("a b", output);
+	}
+
+	@Test
+	void applicationExceptionIsRethrown() {
+		var e = assertThrows(IllegalStateException.class, () -> MultiCall.main(new String[] { "fail" }));
+		assertEquals("Failed.", e.getMessage());
+	}
+
+	@Test
+	void reflectionConfigRegistersMainMethods() {
+		assertEquals("""
+				[
+				  { "name": "a.A", "methods": [ { "name": "main", "parameterTypes": [ "java.lang.String[]" ] } ] },
+				  { "name": "b.B", "methods": [ { "name": "main", "parameterTypes": [ "java.lang.String[]" ] } ] }
+				]
+				""", MultiCall.reflectionConfig(List.of("a.A", "b.B")));
+	}
+}
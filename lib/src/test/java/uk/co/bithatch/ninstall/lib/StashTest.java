@@ -0,0 +1,229 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sshtools.liftlib.IElevator;
+
+import uk.co.bithatch.ninstall.lib.installer.Installer;
+
+public class StashTest {
+	
+	@TempDir
+	Path dir;
+	
+	@TempDir
+	Path tmp;
+
+	@Test
+	void restoreReplacesStashedAndRemovesCreated() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var a = Files.writeString(install.resolve("a.txt"), "a");
+		var b = Files.writeString(Files.createDirectories(install.resolve("sub")).resolve("b.txt"), "b");
+		var c = install.resolve("c.txt");
+		
+		var stash = stash(install);
+		stash.stash(a);
+		stash.stash(b.getParent());
+		stash.stashOrCreated(c);
+		Files.writeString(c, "c");
+		assertFalse(Files.exists(a));
+		assertFalse(Files.exists(b));
+		
+		var order = new ArrayList<String>();
+		stash.onRestore(() -> order.add("first"));
+		stash.onRestore(() -> order.add("second"));
+		stash.restoreAndClose(Optional.empty());
+		
+		assertEquals("a", Files.readString(a));
+		assertEquals("b", Files.readString(b));
+		assertFalse(Files.exists(c));
+		assertEquals(List.of("second", "first"), order);
+	}
+
+	@Test
+	void closeDiscardsStashedPaths() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var a = Files.writeString(install.resolve("a.txt"), "a");
+		
+		var stash = stash(install);
+		stash.stash(a);
+		stash.close();
+		
+		assertFalse(Files.exists(a));
+		assertEquals(Set.of(install), list(dir));
+	}
+
+	@Test
+	void stashIsKeptBesideInstallLocation() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var a = Files.writeString(install.resolve("a.txt"), "a");
+		
+		var stash = stash(install);
+		stash.stash(a);
+		try {
+			var others = list(dir);
+			others.remove(install);
+			assertEquals(1, others.size());
+			assertTrue(others.iterator().next().getFileName().toString().startsWith(".ninstall-stash-"));
+		}
+		finally {
+			stash.restoreAndClose(Optional.empty());
+		}
+		assertEquals(Set.of(install), list(dir));
+	}
+
+	@Test
+	void unstashDiscardsPath() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var a = Files.writeString(install.resolve("a.txt"), "a");
+		
+		var stash = stash(install);
+		stash.stash(a);
+		stash.unstash(a);
+		stash.restoreAndClose(Optional.empty());
+		
+		assertFalse(Files.exists(a));
+	}
+
+	@Test
+	void reloadedStashRestores() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var a = Files.writeString(install.resolve("a.txt"), "a");
+		var c = install.resolve("c.txt");
+		
+		/* As if the first run was interrupted */
+		var interrupted = stash(install);
+		assertTrue(interrupted.persistent());
+		interrupted.stash(a);
+		interrupted.stashOrCreated(c);
+		Files.writeString(c, "c");
+		
+		/* A new process has a new temporary directory */
+		var resumed = new Stash.Builder(new TestContext(install, Files.createTempDirectory(tmp, "next")), "test").build();
+		resumed.restoreAndClose(Optional.empty());
+		assertEquals("a", Files.readString(a));
+		assertFalse(Files.exists(c));
+		assertEquals(Set.of(install), list(dir));
+	}
+
+	@Test
+	void stashIsInTemporaryDirectoryWithoutInstallLocation() throws IOException {
+		var a = Files.writeString(dir.resolve("a.txt"), "a");
+		
+		var stash = new Stash.Builder(new TestContext(null, tmp), "test").build();
+		assertFalse(stash.persistent());
+		stash.stash(a);
+		assertFalse(Files.exists(a));
+		stash.restoreAndClose(Optional.empty());
+		assertEquals("a", Files.readString(a));
+	}
+
+	@Test
+	void onlyExistingPathsCanBeStashed() throws IOException {
+		var install = Files.createDirectories(dir.resolve("app"));
+		var stash = stash(install);
+		try {
+			assertThrows(UncheckedIOException.class, () -> stash.stash(install.resolve("missing")));
+		}
+		finally {
+			stash.close();
+		}
+	}
+	
+	private Stash stash(Path install) {
+		return new Stash.Builder(new TestContext(install, tmp), "test").build();
+	}
+	
+	private static Set<Path> list(Path dir) throws IOException {
+		try(var stream = Files.list(dir)) {
+			return new HashSet<>(stream.toList());
+		}
+	}
+	
+	private record TestContext(Path location, Path tmp) implements SetupAppContext<Installer, SetupAppOptions> {
+
+		@Override
+		public Path installLocation() {
+			if(location == null)
+				throw new IllegalStateException("No install location.");
+			return location;
+		}
+
+		@Override
+		public List<AttributeKey> keys() {
+			return List.of();
+		}
+
+		@Override
+		public SetupAppOptions options() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Installer setupApp() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Scope scope() {
+			return Scope.current();
+		}
+
+		@Override
+		public Registry registry() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Mode mode() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public IElevator elevator() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Map<AttributeKey, Object> attributes() {
+			return Map.of();
+		}
+	}
+}
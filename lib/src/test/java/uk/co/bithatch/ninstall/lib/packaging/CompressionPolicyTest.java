@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib.packaging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.ninstall.lib.packaging.CompressionPolicy.Method;
+
+public class CompressionPolicyTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void compressedExtensionsAreStored() throws IOException {
+		var text = text("lib/app.jar");
+		var compression = CompressionPolicy.defaultPolicy().select("lib/app.JAR", text, Files.size(text));
+		assertEquals(Method.STORED, compression.method());
+		assertEquals(".jar", compression.reason());
+	}
+
+	@Test
+	void textIsDeflated() throws IOException {
+		var text = text("readme.txt");
+		var compression = CompressionPolicy.defaultPolicy().select("readme.txt", text, Files.size(text));
+		assertEquals(Method.DEFLATED, compression.method());
+		assertEquals(Deflater.DEFAULT_COMPRESSION, compression.level());
+	}
+
+	@Test
+	void randomContentIsStored() throws IOException {
+		var random = random("data");
+		var compression = CompressionPolicy.defaultPolicy().select("data", random, Files.size(random));
+		assertEquals(Method.STORED, compression.method());
+		assertTrue(compression.reason().startsWith("entropy"));
+	}
+
+	@Test
+	void deflateAllIgnoresExtensionsAndEntropy() throws IOException {
+		var random = random("data.zip");
+		var compression = CompressionPolicy.deflateAll().select("data.zip", random, Files.size(random));
+		assertEquals(Method.DEFLATED, compression.method());
+	}
+
+	@Test
+	void extensionLevelOverridesStored() throws IOException {
+		var policy = new CompressionPolicy.Builder().withLevel("jar", 9).withStored("txt").build();
+		var text = text("a.jar");
+		assertEquals(new CompressionPolicy.Compression(Method.DEFLATED, 9, ".jar"), policy.select("a.jar", text, Files.size(text)));
+		assertEquals(Method.STORED, policy.select("a.txt", text, Files.size(text)).method());
+	}
+
+	@Test
+	void smallFilesAreStored() throws IOException {
+		var text = text("small.txt");
+		var policy = new CompressionPolicy.Builder().withMinimumSize(Files.size(text) + 1).build();
+		assertEquals(new CompressionPolicy.Compression(Method.STORED, 0, "size"), policy.select("small.txt", text, Files.size(text)));
+	}
+
+	@Test
+	void levelZeroStores() throws IOException {
+		var text = text("readme.txt");
+		var policy = new CompressionPolicy.Builder().withLevel(0).build();
+		assertEquals(Method.STORED, policy.select("readme.txt", text, Files.size(text)).method());
+	}
+
+	@Test
+	void invalidLevelIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new CompressionPolicy.Builder().withLevel(10));
+	}
+	
+	private Path text(String name) throws IOException {
+		var path = dir.resolve(name.replace('/', '_'));
+		Files.writeString(path, "The quick brown fox jumps over the lazy dog. ".repeat(200));
+		return path;
+	}
+	
+	private Path random(String name) throws IOException {
+		var data = new byte[8192];
+		new Random(0).nextBytes(data);
+		return Files.write(dir.resolve(name), data);
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2020 Bithatch (brett@bithatch.co.uk)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the “Software”), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package uk.co.bithatch.ninstall.lib.packaging;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.ninstall.lib.Archives;
+import uk.co.bithatch.ninstall.lib.ContentManifest;
+
+public class ZipAssemblerTest {
+	
+	private final static FileTime TIME = FileTime.fromMillis(1_600_000_000_000L);
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void sameArchiveWhateverTheParallelism() throws IOException {
+		var src = source();
+		var one = assemble(src, dir.resolve("one.zip"), 1, Optional.empty());
+		var many = assemble(src, dir.resolve("many.zip"), 4, Optional.empty());
+		assertArrayEquals(Files.readAllBytes(one), Files.readAllBytes(many));
+	}
+
+	@Test
+	void entriesHaveOriginalContent() throws IOException {
+		var src = source();
+		var zip = assemble(src, dir.resolve("out.zip"), 4, Optional.empty());
+		try(var zf = ZipFile.builder().setPath(zip).get()) {
+			for(var file : files(src)) {
+				var entry = zf.getEntry(src.relativize(file).toString());
+				try(var in = zf.getInputStream(entry)) {
+					assertArrayEquals(Files.readAllBytes(file), in.readAllBytes());
+				}
+				assertEquals(TIME.toMillis(), entry.getTime());
+			}
+		}
+	}
+
+	@Test
+	void manifestHasDigests() throws IOException {
+		var src = source();
+		var zip = assemble(src, dir.resolve("out.zip"), 4, Optional.empty());
+		try(var zf = ZipFile.builder().setPath(zip).get()) {
+			ContentManifest manifest;
+			try(var in = zf.getInputStream(zf.getEntry(ContentManifest.FILENAME))) {
+				manifest = ContentManifest.read(in);
+			}
+			var files = files(src);
+			assertEquals(files.size(), manifest.entries().stream().filter(e -> !e.directory()).count());
+			for(var entry : manifest.entries()) {
+				if(!entry.directory()) {
+					assertEquals(Optional.of(ContentManifest.sha256(src.resolve(entry.path()))), entry.sha256());
+				}
+			}
+		}
+	}
+
+	@Test
+	void hardLinksAreStoredOnce() throws IOException {
+		var src = Files.createDirectories(dir.resolve("src"));
+		var file = Files.writeString(src.resolve("a.txt"), "content");
+		Files.createLink(src.resolve("b.txt"), file);
+		
+		var zip = dir.resolve("out.zip");
+		try(var assembler = new ZipAssembler.Builder(zip).build()) {
+			assembler.add("a.txt", file);
+			assembler.add("b.txt", src.resolve("b.txt"));
+		}
+		try(var zf = ZipFile.builder().setPath(zip).get()) {
+			var link = zf.getEntry("b.txt");
+			assertEquals(Optional.of("a.txt"), Archives.hardLink(link));
+			assertEquals(0, link.getSize());
+			assertEquals(7, zf.getEntry("a.txt").getSize());
+		}
+	}
+	
+	@Test
+	void unchangedFilesAreReused() throws IOException {
+		var src = source();
+		var zip = dir.resolve("out.zip");
+		var index = Optional.of(dir.resolve("out.index"));
+		assemble(src, zip, 4, index);
+		var full = Files.readAllBytes(zip);
+		
+		assemble(src, zip, 4, index);
+		assertArrayEquals(full, Files.readAllBytes(zip));
+		assertEquals(files(src).stream().map(f -> src.relativize(f).toString()).toList(), reused(zip));
+	}
+
+	@Test
+	void changedFilesAreCompressedAgain() throws IOException {
+		var src = source();
+		var zip = dir.resolve("out.zip");
+		var index = Optional.of(dir.resolve("out.index"));
+		assemble(src, zip, 4, index);
+		
+		/* Same size and time, different content */
+		var text = src.resolve("text.txt");
+		write(text, "Hello World! ".repeat(1000).getBytes());
+		assemble(src, zip, 4, index);
+		
+		assertFalse(reused(zip).contains("text.txt"));
+		assertTrue(reused(zip).contains("large.dat"));
+		try(var zf = ZipFile.builder().setPath(zip).get(); var in = zf.getInputStream(zf.getEntry("text.txt"))) {
+			assertArrayEquals(Files.readAllBytes(text), in.readAllBytes());
+		}
+	}
+	
+	private static List<String> reused(Path zip) throws IOException {
+		var names = new ArrayList<String>();
+		for(var line : Files.readAllLines(zip.resolveSibling(zip.getFileName() + ".report"))) {
+			var fields = line.split("\t");
+			if(!line.startsWith("#") && fields.length == 6 && fields[4].equals("unchanged"))
+				names.add(fields[5]);
+		}
+		return names;
+	}
+	
+	private Path source() throws IOException {
+		var src = Files.createDirectories(dir.resolve("src"));
+		var rnd = new Random(0);
+		
+		/* Some compressible, some not, and one large enough to be spilled to disk */ 
+		write(src.resolve("text.txt"), "Hello world. ".repeat(1000).getBytes());
+		var random = new byte[64 * 1024];
+		rnd.nextBytes(random);
+		write(Files.createDirectories(src.resolve("sub")).resolve("random.bin"), random);
+		write(src.resolve("sub").resolve("empty"), new byte[0]);
+		var large = new byte[3 * 1024 * 1024];
+		for(var i = 0 ; i < large.length; i++)
+			large[i] = (byte)(rnd.nextInt(16));
+		write(src.resolve("large.dat"), large);
+		for(var i = 0 ; i < 20; i++)
+			write(src.resolve("file" + i + ".txt"), ("File " + i).repeat(i * 10).getBytes());
+		return src;
+	}
+	
+	private static void write(Path path, byte[] data) throws IOException {
+		Files.write(path, data);
+		Files.setLastModifiedTime(path, TIME);
+	}
+
+	private static List<Path> files(Path src) throws IOException {
+		try(var walk = Files.walk(src)) {
+			return walk.filter(Files::isRegularFile).sorted().toList();
+		}
+	}
+
+	private static Path assemble(Path src, Path zip, int parallelism, Optional<Path> index) throws IOException {
+		var content = new ContentManifest.Builder();
+		try(var assembler = new ZipAssembler.Builder(zip).withParallelism(parallelism).withContent(content).withIndex(index).
+				withReport(zip.resolveSibling(zip.getFileName() + ".report")).build()) {
+			var paths = new ArrayList<Path>();
+			try(var walk = Files.walk(src)) {
+				walk.filter(p -> !p.equals(src)).sorted().forEach(paths::add);
+			}
+			for(var path : paths) {
+				assembler.add(src.relativize(path).toString(), path);
+			}
+			assembler.flush();
+			assembler.add(ContentManifest.FILENAME, content.build());
+		}
+		assertTrue(Files.exists(zip));
+		return zip;
+	}
+}